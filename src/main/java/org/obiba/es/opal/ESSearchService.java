@@ -11,19 +11,34 @@
 package org.obiba.es.opal;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
-import org.codehaus.jettison.json.JSONArray;
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
+import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.ClusterService;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.obiba.es.opal.support.BulkLoadMode;
+import org.obiba.es.opal.support.BulkPipeline;
+import org.obiba.es.opal.support.BulkPolicy;
+import org.obiba.es.opal.support.ESIndexManager;
 import org.obiba.es.opal.support.ESQueryExecutor;
 import org.obiba.es.opal.support.ESSearchQueryExecutor;
+import org.obiba.es.opal.support.IndexLayout;
+import org.obiba.es.opal.support.IndexMetadataCache;
+import org.obiba.es.opal.support.IndexStateStore;
+import org.obiba.es.opal.support.IndexSyncCoordinator;
+import org.obiba.es.opal.support.QueryResultCache;
 import org.obiba.es.opal.support.QueryResultConverter;
+import org.obiba.es.opal.support.ScrollHelper;
+import org.obiba.es.opal.support.SummaryScheduler;
 import org.obiba.opal.spi.search.*;
 import org.obiba.opal.spi.search.support.ItemResultDtoStrategy;
 import org.obiba.opal.spi.search.support.ValueTableIndexManager;
@@ -33,8 +48,18 @@ import java.io.File;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
@@ -45,6 +70,20 @@ public class ESSearchService implements SearchService {
 
   private static final int TERMS_FACETS_SIZE_LIMIT = 200;
 
+  private static final int IDENTIFIERS_SCROLL_THRESHOLD = 10000;
+
+  private static final int BULK_LOAD_THRESHOLD = 10000;
+
+  private static final int QUERY_COMPLETION_THREADS = 4;
+
+  private static final int QUERY_COMPLETION_QUEUE_SIZE = 1000;
+
+  private static final int QUERY_SCROLL_THREADS = 2;
+
+  private static final String QUERY_RESULT = "query";
+
+  private static final String ENTITIES_RESULT = "entities";
+
   private Properties properties;
 
   private boolean running;
@@ -63,6 +102,20 @@ public class ESSearchService implements SearchService {
 
   private ValuesIndexManager valuesIndexManager;
 
+  private BulkLoadMode bulkLoadMode;
+
+  private IndexMetadataCache indexMetadataCache;
+
+  private IndexStateStore indexStateStore;
+
+  private IndexSyncCoordinator indexSyncCoordinator;
+
+  private QueryResultCache queryResultCache;
+
+  private ExecutorService queryCompletionExecutor;
+
+  private ExecutorService queryScrollExecutor;
+
   //
   // Service management
   //
@@ -125,6 +178,16 @@ public class ESSearchService implements SearchService {
       else
         createNodeClient(builder);
 
+      indexMetadataCache = new IndexMetadataCache(client, getTimeProperty("metadataCacheTtl", IndexMetadataCache.DEFAULT_TTL),
+          getByteSizeProperty("mappingCacheMaxSize", IndexMetadataCache.DEFAULT_MAX_MAPPINGS_SIZE));
+      if (esNode != null) {
+        esNode.injector().getInstance(ClusterService.class).add(indexMetadataCache);
+        indexMetadataCache.setListening(true);
+      }
+      indexStateStore = new IndexStateStore(client, settings.getIndexName() + "-meta", indexMetadataCache);
+      queryResultCache = new QueryResultCache(getByteSizeProperty("queryCacheMaxSize", QueryResultCache.DEFAULT_MAX_SIZE),
+          getTimeProperty("queryCacheTtl", QueryResultCache.DEFAULT_TTL));
+
       running = true;
     }
   }
@@ -136,8 +199,20 @@ public class ESSearchService implements SearchService {
     if (client != null) client.close();
     esNode = null;
     client = null;
+    if (valuesIndexManager != null) ((ESValuesIndexManager) valuesIndexManager).shutdown();
     valuesIndexManager = null;
     variablesIndexManager = null;
+    bulkLoadMode = null;
+    indexMetadataCache = null;
+    indexStateStore = null;
+    indexSyncCoordinator = null;
+    queryResultCache = null;
+    synchronized (this) {
+      if (queryCompletionExecutor != null) queryCompletionExecutor.shutdownNow();
+      queryCompletionExecutor = null;
+      if (queryScrollExecutor != null) queryScrollExecutor.shutdownNow();
+      queryScrollExecutor = null;
+    }
   }
 
   //
@@ -164,63 +239,93 @@ public class ESSearchService implements SearchService {
 
   @Override
   public void executeIdentifiersQuery(QuerySettings querySettings, String searchPath, HitsQueryCallback<String> callback) throws SearchException {
-    JSONObject jsonResponse = executeQuery(querySettings, searchPath);
-    if (jsonResponse.isNull("error")) {
-      try {
-        JSONObject jsonHits = jsonResponse.getJSONObject("hits");
-        callback.onTotal(jsonHits.getInt("total"));
-        JSONArray hits = jsonHits.getJSONArray("hits");
-        for (int i = 0; i < hits.length(); i++) {
-          JSONObject jsonHit = hits.getJSONObject(i);
-          if (jsonHit.has("_source")) {
-            callback.onIdentifier(jsonHit.getJSONObject("_source").getString("identifier"));
-          }
-        }
-      } catch (JSONException e) {
-        throw new SearchException(e.getMessage(), e);
-      }
-    } else callback.onTotal(0);
+    ESQueryExecutor executor = newQueryExecutor(querySettings, searchPath);
+    if (isIdentifiersScroll(querySettings, executor)) {
+      scrollIdentifiers(executor, querySettings, callback);
+      return;
+    }
+    pushIdentifiers(search(executor, querySettings), callback);
+  }
+
+  /**
+   * Executes an identifiers query without blocking the calling thread. A large identifiers query is walked through
+   * with a scroll by a query scroll thread, which is interrupted if the returned future is cancelled.
+   *
+   * @param querySettings
+   * @param searchPath
+   * @param callback
+   * @return completed once all the identifiers have been pushed to the callback
+   */
+  public CompletableFuture<Void> executeIdentifiersQueryAsync(QuerySettings querySettings, String searchPath, HitsQueryCallback<String> callback) {
+    ESQueryExecutor executor = newQueryExecutor(querySettings, searchPath);
+    if (isIdentifiersScroll(querySettings, executor))
+      return supplyScrollAsync(() -> {
+        scrollIdentifiers(executor, querySettings, callback);
+        return null;
+      });
+    return searchAsync(executor, querySettings)
+        .thenAcceptAsync(hits -> pushIdentifiers(hits, callback), getQueryCompletionExecutor());
   }
 
   @Override
   public Search.QueryResultDto executeQuery(QuerySettings querySettings, String searchPath, ItemResultDtoStrategy strategy) throws SearchException {
-    JSONObject jsonResponse = executeQuery(querySettings, searchPath);
-    QueryResultConverter converter = new QueryResultConverter();
-    if (strategy != null) converter.setStrategy(strategy);
-    try {
-      return converter.convert(jsonResponse);
-    } catch (JSONException e) {
-      throw new SearchException(e.getMessage(), e);
-    }
+    // the strategy is applied on the cached result, so that it can be shared by the callers
+    Supplier<Search.QueryResultDto> loader = () -> toQueryResult(search(querySettings, searchPath), null);
+    QueryResultCache cache = getQueryResultCache();
+    Search.QueryResultDto result = cache == null ? loader.get() : cache.get(QUERY_RESULT, querySettings, searchPath, loader);
+    return applyStrategy(result, strategy);
+  }
+
+  /**
+   * Executes a query without blocking the calling thread.
+   *
+   * @param querySettings
+   * @param searchPath
+   * @param strategy
+   * @return
+   */
+  public CompletableFuture<Search.QueryResultDto> executeQueryAsync(QuerySettings querySettings, String searchPath, ItemResultDtoStrategy strategy) {
+    QueryResultCache cache = getQueryResultCache();
+    Search.QueryResultDto cached = cache == null ? null : cache.getIfPresent(QUERY_RESULT, querySettings, searchPath);
+    if (cached != null) return CompletableFuture.completedFuture(applyStrategy(cached, strategy));
+    long since = cache == null ? 0 : cache.getGeneration();
+    return searchAsync(newQueryExecutor(querySettings, searchPath), querySettings).thenApplyAsync(hits -> {
+      Search.QueryResultDto result = toQueryResult(hits, null);
+      if (cache != null) cache.put(QUERY_RESULT, querySettings, searchPath, since, result);
+      return applyStrategy(result, strategy);
+    }, getQueryCompletionExecutor());
   }
 
   public Search.EntitiesResultDto.Builder executeEntitiesQuery(QuerySettings querySettings, String searchPath, String entityType, String query) throws SearchException {
-    JSONObject jsonResponse = executeQuery(querySettings, searchPath);
-    Search.EntitiesResultDto.Builder builder = Search.EntitiesResultDto.newBuilder();
-    builder.setEntityType(entityType);
-    try {
-      if (jsonResponse.has("hits")) {
-        JSONObject jsonHits = jsonResponse.getJSONObject("hits");
-        builder.setTotalHits(jsonHits.getInt("total"));
-        builder.setQuery(query);
-
-        JSONArray hits = jsonHits.getJSONArray("hits");
-        if (hits.length() > 0) {
-          for (int i = 0; i < hits.length(); i++) {
-            Search.ItemResultDto.Builder dtoItemResultBuilder = Search.ItemResultDto.newBuilder();
-            JSONObject jsonHit = hits.getJSONObject(i);
-            dtoItemResultBuilder.setIdentifier(jsonHit.getString("_id"));
-            builder.addHits(dtoItemResultBuilder);
-          }
-        }
-      } else {
-        builder.setTotalHits(0);
-        builder.setQuery(query);
-      }
+    Supplier<Search.EntitiesResultDto> loader = () -> toEntitiesResult(search(querySettings, searchPath), entityType,
+        query).build();
+    QueryResultCache cache = getQueryResultCache();
+    Search.EntitiesResultDto result = cache == null
+        ? loader.get()
+        : cache.get(getEntitiesResultKind(entityType, query), querySettings, searchPath, loader);
+    return result.toBuilder();
+  }
+
+  /**
+   * Executes an entities query without blocking the calling thread.
+   *
+   * @param querySettings
+   * @param searchPath
+   * @param entityType
+   * @param query
+   * @return
+   */
+  public CompletableFuture<Search.EntitiesResultDto.Builder> executeEntitiesQueryAsync(QuerySettings querySettings, String searchPath, String entityType, String query) {
+    QueryResultCache cache = getQueryResultCache();
+    String kind = getEntitiesResultKind(entityType, query);
+    Search.EntitiesResultDto cached = cache == null ? null : cache.getIfPresent(kind, querySettings, searchPath);
+    if (cached != null) return CompletableFuture.completedFuture(cached.toBuilder());
+    long since = cache == null ? 0 : cache.getGeneration();
+    return searchAsync(newQueryExecutor(querySettings, searchPath), querySettings).thenApplyAsync(hits -> {
+      Search.EntitiesResultDto.Builder builder = toEntitiesResult(hits, entityType, query);
+      if (cache != null) cache.put(kind, querySettings, searchPath, since, builder.build());
       return builder;
-    } catch (JSONException e) {
-      throw new SearchException(e.getMessage(), e);
-    }
+    }, getQueryCompletionExecutor());
   }
 
   @Override
@@ -233,6 +338,18 @@ public class ESSearchService implements SearchService {
     return createQueryExecutor(datasource, table).execute(queryDto);
   }
 
+  /**
+   * Executes a query on the values of a table without blocking the calling thread.
+   *
+   * @param datasource
+   * @param table
+   * @param queryDto
+   * @return
+   */
+  public CompletableFuture<Search.QueryResultDto> executeQueryAsync(String datasource, String table, Search.QueryTermsDto queryDto) {
+    return createQueryExecutor(datasource, table).executeAsync(queryDto, getQueryCompletionExecutor());
+  }
+
   //
   // ES methods
   //
@@ -241,17 +358,338 @@ public class ESSearchService implements SearchService {
     return client;
   }
 
+  /**
+   * Get the thresholds that trigger the sending of a bulk request while indexing.
+   *
+   * @return
+   */
+  public BulkPolicy getBulkPolicy() {
+    return new BulkPolicy(getIntProperty("bulkMaxActions", BulkPolicy.DEFAULT_MAX_ACTIONS),
+        getByteSizeProperty("bulkMaxSize", BulkPolicy.DEFAULT_MAX_BYTES),
+        getTimeProperty("bulkFlushInterval", BulkPolicy.DEFAULT_FLUSH_INTERVAL));
+  }
+
+  /**
+   * Whether the settings of an index are to be tuned for bulk loading during a full synchronization. Not by default,
+   * as the settings of an index shared by several tables affect the searches on all of them.
+   *
+   * @return
+   */
+  public boolean isBulkLoad() {
+    return Boolean.parseBoolean(properties.getProperty("bulkLoad", "false").trim());
+  }
+
+  /**
+   * Get the number of value sets below which a synchronization does not put the index in bulk load mode.
+   *
+   * @return
+   */
+  public int getBulkLoadThreshold() {
+    return getIntProperty("bulkLoadThreshold", BULK_LOAD_THRESHOLD);
+  }
+
+  /**
+   * Get the bulk load mode manager, shared by all the synchronizations.
+   *
+   * @return
+   */
+  public synchronized BulkLoadMode getBulkLoadMode() {
+    if (bulkLoadMode == null)
+      bulkLoadMode = new BulkLoadMode(client, getIntProperty("bulkLoadReplicas", 0),
+          Boolean.parseBoolean(properties.getProperty("bulkLoadForceMerge", "false").trim()));
+    return bulkLoadMode;
+  }
+
+  /**
+   * Whether a values index synchronization only processes the value sets modified since the previous one.
+   *
+   * @return
+   */
+  public boolean isValuesDeltaSync() {
+    return "delta".equalsIgnoreCase(properties.getProperty("valuesIndexSync", "full").trim());
+  }
+
+  /**
+   * Whether the values documents of a table are all routed to the same shard, so that the searches on a table do not
+   * hit all the shards of the values index.
+   *
+   * @return
+   */
+  public boolean isValuesIndexRoutedByTable() {
+    return "table".equalsIgnoreCase(properties.getProperty("valuesIndexRouting", "entity").trim());
+  }
+
+  /**
+   * Get the cluster meta data cache, shared by all the index managers.
+   *
+   * @return
+   */
+  public IndexMetadataCache getIndexMetadataCache() {
+    return indexMetadataCache;
+  }
+
+  /**
+   * Get the store of the tables index state, shared by all the index managers.
+   *
+   * @return
+   */
+  public IndexStateStore getIndexStateStore() {
+    return indexStateStore;
+  }
+
+  /**
+   * Get the cache of the query results, with its hit and miss statistics.
+   *
+   * @return null if the service is not running
+   */
+  public QueryResultCache getQueryResultCache() {
+    return queryResultCache;
+  }
+
+  /**
+   * Get the coordinator of the table synchronizations, shared by all the index managers.
+   *
+   * @return
+   */
+  public synchronized IndexSyncCoordinator getIndexSyncCoordinator() {
+    if (indexSyncCoordinator == null)
+      indexSyncCoordinator = new IndexSyncCoordinator(getIntProperty("indexSyncConcurrency", IndexSyncCoordinator.DEFAULT_CONCURRENT_SYNCS),
+          getIntProperty("indexSyncMaxDocsPerSecond", 0), getByteSizeProperty("indexSyncMaxBytesPerSecond", 0),
+          getTimeProperty("indexSyncMaxWait", IndexSyncCoordinator.DEFAULT_MAX_WAIT));
+    return indexSyncCoordinator;
+  }
+
+  /**
+   * Get the executor of the asynchronous queries completion (response conversion), so that the Elasticsearch network
+   * threads are not used for it. The executor is bounded: when its queue is full, the queries fail with a rejected
+   * execution.
+   *
+   * @return
+   */
+  public synchronized ExecutorService getQueryCompletionExecutor() {
+    if (queryCompletionExecutor == null) {
+      int threads = Math.max(getIntProperty("queryCompletionThreads", QUERY_COMPLETION_THREADS), 1);
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<>(Math.max(getIntProperty("queryCompletionQueueSize", QUERY_COMPLETION_QUEUE_SIZE), 1)),
+          threadFactory == null ? Executors.defaultThreadFactory() : threadFactory);
+      executor.allowCoreThreadTimeOut(true);
+      queryCompletionExecutor = executor;
+    }
+    return queryCompletionExecutor;
+  }
+
+  /**
+   * Get the executor of the identifiers scrolls, which block their thread while walking through the pages, so that
+   * they do not hold up the completion of the other queries.
+   *
+   * @return
+   */
+  public synchronized ExecutorService getQueryScrollExecutor() {
+    if (queryScrollExecutor == null) {
+      int threads = Math.max(getIntProperty("queryScrollThreads", QUERY_SCROLL_THREADS), 1);
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<>(Math.max(getIntProperty("queryCompletionQueueSize", QUERY_COMPLETION_QUEUE_SIZE), 1)),
+          threadFactory == null ? Executors.defaultThreadFactory() : threadFactory);
+      executor.allowCoreThreadTimeOut(true);
+      queryScrollExecutor = executor;
+    }
+    return queryScrollExecutor;
+  }
+
+  /**
+   * Get the explicit synchronization priority of a table: the higher, the sooner it is synchronized.
+   *
+   * @param tableReference
+   * @return
+   */
+  public int getIndexSyncPriority(String tableReference) {
+    return getIntProperty("indexSyncPriority." + tableReference, 0);
+  }
+
+  /**
+   * Get the maximum number of table index handles kept by an index manager.
+   *
+   * @return
+   */
+  public int getIndexCacheMaxSize() {
+    return getIntProperty("indexCacheMaxSize", ESIndexManager.DEFAULT_MAX_INDICES);
+  }
+
+  /**
+   * Get how the values of the tables are distributed in physical indices.
+   *
+   * @return
+   */
+  public IndexLayout getValuesIndexLayout() {
+    try {
+      return IndexLayout.valueOfIgnoreCase(properties.getProperty("valuesIndexLayout", "shared"));
+    } catch (IllegalArgumentException e) {
+      return IndexLayout.SHARED;
+    }
+  }
+
+  /**
+   * Get the maximum number of bulk requests that an indexer can have in flight.
+   *
+   * @return
+   */
+  public int getBulkConcurrentRequests() {
+    return getIntProperty("bulkConcurrentRequests", BulkPipeline.DEFAULT_CONCURRENT_REQUESTS);
+  }
+
+  /**
+   * Get the number of identifiers above which an identifiers query is walked through in pages with a scroll.
+   *
+   * @return
+   */
+  public int getIdentifiersScrollThreshold() {
+    return getIntProperty("identifiersScrollThreshold", IDENTIFIERS_SCROLL_THRESHOLD);
+  }
+
+  /**
+   * Get the number of threads computing the variable summaries of the indexed tables.
+   *
+   * @return
+   */
+  public int getSummaryThreads() {
+    return getIntProperty("summaryThreads", SummaryScheduler.DEFAULT_THREADS);
+  }
+
   //
   // Private methods
   //
 
-  private JSONObject executeQuery(QuerySettings querySettings, String searchPath) throws SearchException {
-    ESQueryExecutor executor = new ESQueryExecutor(this).setSearchPath(searchPath);
+  /**
+   * The distinct hits are all walked through anyway, they cannot be streamed before their total is known.
+   */
+  private boolean isIdentifiersScroll(QuerySettings querySettings, ESQueryExecutor executor) {
+    return !executor.isDistinct() &&
+        (long) querySettings.getFrom() + querySettings.getSize() > getIdentifiersScrollThreshold();
+  }
+
+  /**
+   * Stream the identifiers instead of loading all of them at once.
+   */
+  private void scrollIdentifiers(ESQueryExecutor executor, QuerySettings querySettings, HitsQueryCallback<String> callback) {
+    executor.scroll(querySettings, ScrollHelper.DEFAULT_PAGE_SIZE, total -> callback.onTotal((int) total),
+        hit -> pushIdentifier(hit, callback));
+  }
+
+  /**
+   * Run a scroll in a query scroll thread. Cancelling the returned future interrupts the scroll.
+   */
+  private <T> CompletableFuture<T> supplyScrollAsync(Supplier<T> scrolling) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Future<?> scroll;
     try {
-      return executor.execute(querySettings);
-    } catch (JSONException e) {
-      throw new SearchException(e.getMessage(), e);
+      scroll = getQueryScrollExecutor().submit(() -> {
+        try {
+          result.complete(scrolling.get());
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+      return result;
     }
+    result.whenComplete((r, e) -> {
+      if (result.isCancelled()) scroll.cancel(true);
+    });
+    return result;
+  }
+
+  private void pushIdentifiers(SearchHits hits, HitsQueryCallback<String> callback) {
+    callback.onTotal((int) hits.getTotalHits());
+    for (SearchHit hit : hits) pushIdentifier(hit, callback);
+  }
+
+  private void pushIdentifier(SearchHit hit, HitsQueryCallback<String> callback) {
+    Map<String, Object> source = hit.getSource();
+    if (source != null) callback.onIdentifier(String.valueOf(source.get("identifier")));
+  }
+
+  private Search.QueryResultDto toQueryResult(SearchHits hits, ItemResultDtoStrategy strategy) {
+    QueryResultConverter converter = new QueryResultConverter();
+    if (strategy != null) converter.setStrategy(strategy);
+    return converter.convert(hits);
+  }
+
+  /**
+   * Apply the strategy on the hits of a query result.
+   */
+  private Search.QueryResultDto applyStrategy(Search.QueryResultDto result, ItemResultDtoStrategy strategy) {
+    if (strategy == null || result.getHitsCount() == 0) return result;
+    Search.QueryResultDto.Builder builder = result.toBuilder();
+    for (int i = 0; i < builder.getHitsCount(); i++) strategy.process(builder.getHitsBuilder(i));
+    return builder.build();
+  }
+
+  private String getEntitiesResultKind(String entityType, String query) {
+    return ENTITIES_RESULT + "|" + entityType + "|" + query;
+  }
+
+  private Search.EntitiesResultDto.Builder toEntitiesResult(SearchHits hits, String entityType, String query) {
+    Search.EntitiesResultDto.Builder builder = Search.EntitiesResultDto.newBuilder();
+    builder.setEntityType(entityType);
+    builder.setTotalHits((int) hits.getTotalHits());
+    builder.setQuery(query);
+    for (SearchHit hit : hits) {
+      builder.addHits(Search.ItemResultDto.newBuilder().setIdentifier(hit.getId()));
+    }
+    return builder;
+  }
+
+  private SearchHits search(QuerySettings querySettings, String searchPath) {
+    return search(newQueryExecutor(querySettings, searchPath), querySettings);
+  }
+
+  private SearchHits search(ESQueryExecutor executor, QuerySettings querySettings) {
+    return executor.isDistinct()
+        ? executor.searchDistinct(querySettings, ScrollHelper.DEFAULT_PAGE_SIZE)
+        : executor.search(querySettings).getHits();
+  }
+
+  /**
+   * The distinct hits are merged in a query scroll thread, the other ones are converted by the caller.
+   */
+  private CompletableFuture<SearchHits> searchAsync(ESQueryExecutor executor, QuerySettings querySettings) {
+    if (executor.isDistinct())
+      return supplyScrollAsync(() -> executor.searchDistinct(querySettings, ScrollHelper.DEFAULT_PAGE_SIZE));
+    return executor.searchAsync(querySettings).thenApply(SearchResponse::getHits);
+  }
+
+  private ESQueryExecutor newQueryExecutor(QuerySettings querySettings, String searchPath) {
+    ESQueryExecutor executor = new ESQueryExecutor(this).setSearchPath(searchPath);
+    ESValuesIndexManager manager = (ESValuesIndexManager) getValuesIndexManager();
+    String[] path = searchPath.split("/");
+    if (!path[0].equals(manager.getName())) return executor;
+    List<String> indices = Lists.newArrayList(manager.getName());
+    List<String> routings = null;
+    // route the search on the values to the indices of the filtered tables
+    if (querySettings.hasFilterReferences()) {
+      indices = manager.getSearchIndices(querySettings.getFilterReferences());
+      routings = manager.getSearchRouting(querySettings.getFilterReferences());
+      executor.setIndices(indices).setRoutings(routings);
+    }
+    if (path.length > 1 && manager.isEntityType(path[1]) && manager.hasEntityCopies(indices, routings)) {
+      checkEntityCopiesQuery(querySettings);
+      executor.setDistinct(true);
+    }
+    return executor;
+  }
+
+  /**
+   * A copy of an entity document only has the value sets of its own index, or table routing, as children: the queries requiring children
+   * in several tables, or the absence of children, cannot be answered from the copies.
+   */
+  private void checkEntityCopiesQuery(QuerySettings querySettings) {
+    if (!querySettings.hasChildQueries()) return;
+    String operator = querySettings.getChildQueryOperator();
+    if ("must_not".equals(operator) ||
+        (!"should".equals(operator) && Iterables.size(querySettings.getChildQueries()) > 1))
+      throw new IllegalArgumentException("Entities query with '" + operator + "' child queries is not supported " +
+          "across several values indices: use the shared values index layout");
   }
 
   private SearchQueryExecutor createQueryExecutor(String datasource, String table) {
@@ -260,10 +698,34 @@ public class ESSearchService implements SearchService {
   }
 
   private int getTermsFacetSizeLimit() {
+    return getIntProperty("termsFacetSizeLimit", TERMS_FACETS_SIZE_LIMIT);
+  }
+
+  private int getIntProperty(String name, int defaultValue) {
     try {
-      return Integer.parseInt(properties.getProperty("termsFacetSizeLimit", "" + TERMS_FACETS_SIZE_LIMIT));
+      return Integer.parseInt(properties.getProperty(name, "" + defaultValue).trim());
     } catch (NumberFormatException e) {
-      return TERMS_FACETS_SIZE_LIMIT;
+      return defaultValue;
+    }
+  }
+
+  private long getByteSizeProperty(String name, long defaultValue) {
+    String value = properties.getProperty(name, "").trim();
+    if (value.isEmpty()) return defaultValue;
+    try {
+      return ByteSizeValue.parseBytesSizeValue(value, name).bytes();
+    } catch (RuntimeException e) {
+      return defaultValue;
+    }
+  }
+
+  private long getTimeProperty(String name, long defaultMillis) {
+    String value = properties.getProperty(name, "").trim();
+    if (value.isEmpty()) return defaultMillis;
+    try {
+      return TimeValue.parseTimeValue(value, TimeValue.timeValueMillis(defaultMillis), name).millis();
+    } catch (RuntimeException e) {
+      return defaultMillis;
     }
   }
 
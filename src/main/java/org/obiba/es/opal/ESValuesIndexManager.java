@@ -9,25 +9,46 @@
  */
 package org.obiba.es.opal;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.Lists;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.obiba.es.opal.mapping.AttributeMapping;
 import org.obiba.es.opal.mapping.MappingHelper;
 import org.obiba.es.opal.mapping.ValueTableMapping;
+import org.obiba.es.opal.support.BulkBuffer;
 import org.obiba.es.opal.support.ESIndexManager;
 import org.obiba.es.opal.support.ESMapping;
+import org.obiba.es.opal.support.EntitiesFilteredValueTable;
+import org.obiba.es.opal.support.IndexLayout;
+import org.obiba.es.opal.support.IndexStateStore;
+import org.obiba.es.opal.support.ParentDocumentRegistry;
+import org.obiba.es.opal.support.ScrollHelper;
+import org.obiba.es.opal.support.SummaryScheduler;
+import org.obiba.es.opal.support.ThreadBulkBuffers;
+import org.obiba.es.opal.support.ValuesColumnPlan;
+import org.obiba.es.opal.support.ValuesDocumentEncoder;
+import org.obiba.magma.Attribute;
+import org.obiba.magma.Category;
+import org.obiba.magma.NoSuchDatasourceException;
+import org.obiba.magma.NoSuchValueTableException;
+import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
 import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.VariableEntity;
 import org.obiba.magma.concurrent.ConcurrentValueTableReader;
 import org.obiba.magma.concurrent.ConcurrentValueTableReader.ConcurrentReaderCallback;
-import org.obiba.magma.support.VariableNature;
+import org.obiba.magma.support.MagmaEngineTableResolver;
 import org.obiba.magma.type.BinaryType;
-import org.obiba.magma.type.DateType;
 import org.obiba.opal.spi.search.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,10 +56,15 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -46,14 +72,23 @@ public class ESValuesIndexManager extends ESIndexManager implements ValuesIndexM
 
   private static final Logger log = LoggerFactory.getLogger(ESValuesIndexManager.class);
 
+  // number of value sets which timestamps are read at once by a delta synchronization
+  private static final int TIMESTAMPS_BATCH_SIZE = 1000;
+
   private final ThreadFactory threadFactory;
 
   private final VariableSummaryHandler variableSummaryHandler;
 
+  private final ParentDocumentRegistry parentDocumentRegistry;
+
+  private final SummaryScheduler summaryScheduler;
+
   protected ESValuesIndexManager(ESSearchService esSearchService, VariableSummaryHandler variableSummaryHandler, ThreadFactory threadFactory) {
     super(esSearchService);
     this.variableSummaryHandler = variableSummaryHandler;
     this.threadFactory = threadFactory;
+    parentDocumentRegistry = new ParentDocumentRegistry(esSearchService);
+    summaryScheduler = new SummaryScheduler(variableSummaryHandler, threadFactory, esSearchService.getSummaryThreads());
   }
 
   @NotNull
@@ -79,152 +114,368 @@ public class ESValuesIndexManager extends ESIndexManager implements ValuesIndexM
     return esIndexName() + "-values";
   }
 
+  @Override
+  protected IndexLayout getLayout() {
+    return esSearchService.getValuesIndexLayout();
+  }
+
+  /**
+   * Get the physical indices holding the values of some tables, so that a search can be routed to them only.
+   *
+   * @param references table references
+   * @return the values index name if none of the tables can be resolved
+   */
+  List<String> getSearchIndices(Collection<String> references) {
+    return getSearchIndices(references, reference -> MagmaEngineTableResolver.valueOf(reference).resolveTable());
+  }
+
+  /**
+   * Get the physical indices holding the values of some tables, the tables that do not exist (anymore) being ignored.
+   *
+   * @param references table references
+   * @param resolver resolves a table from its reference
+   * @return the values index name if none of the tables can be resolved
+   */
+  List<String> getSearchIndices(Collection<String> references, Function<String, ValueTable> resolver) {
+    if (getLayout() == IndexLayout.SHARED) return Lists.newArrayList(getName());
+    List<String> indices = Lists.newArrayList();
+    for (String reference : references) {
+      try {
+        String indexName = getIndex(resolver.apply(reference)).getIndexName();
+        if (!indices.contains(indexName)) indices.add(indexName);
+      } catch (NoSuchDatasourceException | NoSuchValueTableException e) {
+        log.warn("Unable to resolve the values index of table {}: {}", reference, e.getMessage());
+      }
+    }
+    return indices.isEmpty() ? Lists.newArrayList(getName()) : indices;
+  }
+
+  /**
+   * Whether a search on some values indices can hit several copies of the same entity document: in the datasource
+   * and table layouts, each index holds the entity documents that are the parents of its value sets, and when routed
+   * by table, each table has its own entity documents in the shard of its routing.
+   *
+   * @param searchIndices the physical indices, or the values index name for all of them
+   * @param searchRouting the table routing, null for all the tables
+   * @return
+   */
+  boolean hasEntityCopies(List<String> searchIndices, @Nullable List<String> searchRouting) {
+    if (isRoutedByTable() && (searchRouting == null || searchRouting.size() > 1)) return true;
+    return getLayout() != IndexLayout.SHARED && (searchIndices.size() > 1 || searchIndices.contains(getName()));
+  }
+
+  /**
+   * Whether a document type of the values indices is the one of the entity documents, the parents of the value sets.
+   *
+   * @param type
+   * @return
+   */
+  boolean isEntityType(String type) {
+    return !ESValueTableValuesIndex.VALUE_SET_TYPE.equals(type);
+  }
+
+  @Override
+  protected boolean isBulkLoadable() {
+    return true;
+  }
+
+  @Override
+  protected boolean isRoutedByTable() {
+    return esSearchService.isValuesIndexRoutedByTable();
+  }
+
+  /**
+   * Get the custom routing of the documents of some tables, so that a search only hits the shards holding them.
+   *
+   * @param references table references
+   * @return null if the documents are not routed by table
+   */
+  @Nullable
+  List<String> getSearchRouting(Collection<String> references) {
+    return isRoutedByTable() ? Lists.newArrayList(references) : null;
+  }
+
+  @Override
+  protected void onGenerationDropped(String indexName) {
+    parentDocumentRegistry.invalidate(indexName);
+  }
+
+  @Override
+  public void drop() {
+    super.drop();
+    parentDocumentRegistry.clear();
+  }
+
+  /**
+   * Stop the computation of the variable summaries.
+   */
+  void shutdown() {
+    summaryScheduler.shutdown();
+  }
+
   private class Indexer extends ESIndexer {
 
     private final ESValueTableValuesIndex index;
 
+    // only some of the value sets are read: delta synchronization
+    private boolean partial = false;
+
+    // value sets indexed by an interrupted synchronization, read again for the summaries only
+    private Set<String> alreadyIndexed = Collections.emptySet();
+
+    // value sets modified after this time may not have been read
+    private Date started;
+
     private Indexer(ValueTable table, ESValueTableValuesIndex index) {
       super(table, index);
       this.index = index;
     }
 
+    @Override
+    protected void synchronize() {
+      started = new Date();
+      // summaries being computed from the previous synchronization are out of date
+      summaryScheduler.cancel(valueTable);
+      if(esSearchService.isValuesDeltaSync() && index.canSyncDelta()) {
+        runDelta();
+      } else if(index.canResume()) {
+        runResume();
+      } else {
+        super.synchronize();
+      }
+    }
+
     @Override
     protected void index() {
+      index.saveCheckpoint();
+      index(valueTable);
+    }
+
+    private void index(ValueTable table) {
       ConcurrentValueTableReader.Builder.newReader() //
           .withThreads(threadFactory) //
           .ignoreReadErrors() //
-          .from(valueTable) //
+          .from(table) //
           .variablesFilter(index.getVariables()) //
           .to(new ValuesReaderCallback()) //
           .build() //
           .read();
     }
 
+    /**
+     * Index the value sets that were updated since the previous synchronization started and delete the ones of the
+     * entities that have disappeared.
+     */
+    private void runDelta() {
+      log.debug("Updating ValueTable index {} with modified value sets", index.getValueTableReference());
+      partial = true;
+      // start of the previous synchronization
+      Value lastUpdate = index.getTimestamps().getLastUpdate();
+      index.createIndex();
+      Set<String> indexed = index.getIndexedIdentifiers();
+      List<VariableEntity> modified = Lists.newArrayList();
+      List<VariableEntity> batch = Lists.newArrayList();
+      for(VariableEntity entity : valueTable.getVariableEntities()) {
+        if(!indexed.remove(entity.getIdentifier())) {
+          modified.add(entity);
+        } else {
+          batch.add(entity);
+          if(batch.size() >= TIMESTAMPS_BATCH_SIZE) {
+            addModified(batch, lastUpdate, modified);
+            batch.clear();
+          }
+        }
+      }
+      addModified(batch, lastUpdate, modified);
+      // what remains are the entities that are not in the table anymore
+      deleteValueSets(indexed);
+      setTotal(modified.size());
+      log.info("Table {} index is out of date: {} value sets to index, {} to delete", valueTable.getTableReference(),
+          modified.size(), indexed.size());
+      if(modified.isEmpty()) {
+        awaitSent();
+        index.updateTimestamps(started);
+      } else {
+        index(new EntitiesFilteredValueTable(valueTable, modified));
+      }
+    }
+
+    /**
+     * Index the value sets that an interrupted full synchronization did not process. All the value sets are read,
+     * as the variable summaries cleared by the interruption are computed from all of them. A stopped synchronization
+     * is resumed only in a table generation, a shared index being cleared of the partially indexed table on stop.
+     */
+    private void runResume() {
+      log.debug("Resuming ValueTable index {} update", index.getValueTableReference());
+      if(index.isGenerational()) runGeneration(index.getSuspendedGeneration(), this::resume);
+      else resume();
+    }
+
+    private void resume() {
+      index.createIndex();
+      Set<String> indexed = index.getIndexedIdentifiers();
+      int remaining = 0;
+      for(VariableEntity entity : valueTable.getVariableEntities()) {
+        if(!indexed.contains(entity.getIdentifier())) remaining++;
+      }
+      setTotal(remaining);
+      log.info("Table {} index update resumed: {} value sets already indexed, {} to index",
+          valueTable.getTableReference(), indexed.size(), remaining);
+      // the identifiers are held in memory until the end of the synchronization
+      alreadyIndexed = indexed;
+      bulkLoad(() -> index(valueTable));
+    }
+
+    /**
+     * Add the entities which value set was modified after the index last update, reading their timestamps at once.
+     */
+    private void addModified(List<VariableEntity> entities, Value indexLastUpdate, List<VariableEntity> modified) {
+      if(entities.isEmpty()) return;
+      Iterator<VariableEntity> entityIterator = entities.iterator();
+      for(Timestamps timestamps : valueTable.getValueSetsTimestamps(entities)) {
+        VariableEntity entity = entityIterator.next();
+        Value lastUpdate = timestamps.getLastUpdate();
+        if(lastUpdate.isNull() || lastUpdate.compareTo(indexLastUpdate) > 0) modified.add(entity);
+      }
+    }
+
+    private void deleteValueSets(Iterable<String> identifiers) {
+      BulkBuffer bulkBuffer = newBulkBuffer();
+      for(String identifier : identifiers) {
+        bulkBuffer.add(index.prepareDeleteValueSet(identifier));
+        sendIfFull(bulkBuffer);
+      }
+      send(bulkBuffer);
+    }
+
     private class ValuesReaderCallback implements ConcurrentReaderCallback {
 
-      private BulkRequestBuilder bulkRequest = esSearchService.getClient().prepareBulk();
+      // values are read by several threads, each of them fills its own bulk
+      private final ThreadBulkBuffers threadBulkBuffers = new ThreadBulkBuffers(Indexer.this::newBulkBuffer);
+
+      // parent documents indexed by this synchronization, known to the others once they have all been sent
+      private final ParentDocumentRegistry.Registration parents = parentDocumentRegistry
+          .newRegistration(index.getWriteIndexName(), valueTable.getEntityType(), index.getRouting());
+
+      private ValuesColumnPlan columnPlan;
 
-      private final Map<Variable, VariableNature> natures = new HashMap<>();
+      private final ValuesDocumentEncoder encoder = new ValuesDocumentEncoder(valueTable);
 
       private final Stopwatch stopwatch = Stopwatch.createUnstarted();
 
       @Override
       public void onBegin(List<VariableEntity> entitiesToCopy, Variable... variables) {
         stopwatch.start();
-        for(Variable variable : variables) {
-          natures.put(variable, VariableNature.getNature(variable));
-        }
+        columnPlan = new ValuesColumnPlan(variables, index::getFieldName);
       }
 
       @Override
       public void onValues(VariableEntity entity, Variable[] variables, Value... values) {
-        if(stop) {
+        if(isCancelled()) {
           return;
         }
 
         String identifier = entity.getIdentifier();
-        bulkRequest.add(esSearchService.getClient() //
-            .prepareIndex(getName(), valueTable.getEntityType(), identifier) //
-            .setSource("{\"identifier\":\"" + identifier + "\"}"));
+        if(alreadyIndexed.contains(identifier)) {
+          for(int i = 0; i < values.length; i++) {
+            variableSummaryHandler.stackVariable(getValueTable(), columnPlan.getVariable(i), values[i]);
+          }
+          return;
+        }
+
+        BulkBuffer bulkBuffer = threadBulkBuffers.get();
+        if(parents.register(identifier)) {
+          bulkBuffer.add(index.prepareIndexEntity(valueTable.getEntityType(), identifier));
+        }
 
         try {
-          XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
-          builder.field("identifier", identifier);
-          builder.field("project", valueTable.getDatasource().getName());
-          builder.field("datasource", valueTable.getDatasource().getName());
-          builder.field("table", valueTable.getName());
-          builder.field("reference", valueTable.getTableReference());
-          builder.field("entityType", valueTable.getEntityType());
-
-          for(int i = 0; i < variables.length; i++) {
-            indexValue(builder, variables[i], values[i], identifier);
+          ValuesDocumentEncoder.Document document = encoder.start(identifier);
+
+          for(int i = 0; i < values.length; i++) {
+            indexValue(document, i, values[i]);
           }
-          builder.endObject();
 
-          IndexRequestBuilder requestBuilder = esSearchService.getClient()
-              .prepareIndex(index.getIndexName(), index.getIndexType(), valueTable.getTableReference() + "-" + identifier).setParent(identifier).setSource(builder);
-          bulkRequest.add(requestBuilder);
-          done++;
+          bulkBuffer.add(index.prepareIndexValueSet(identifier, document.end()));
+          done.increment();
 
-          if(bulkRequest.numberOfActions() >= ES_BATCH_SIZE) {
-            bulkRequest = sendAndCheck(bulkRequest);
-          }
+          sendIfFull(bulkBuffer);
         } catch(IOException e) {
           throw new RuntimeException(e);
         }
       }
 
-      private void indexValue(XContentBuilder xcb, Variable variable, Value value, String identifier) throws IOException {
-        String fieldName = index.getFieldName(variable);
-
+      private void indexValue(ValuesDocumentEncoder.Document document, int position, Value value) throws IOException {
         if(value.isSequence() && !value.isNull()) {
-          List<Object> values = Lists.newArrayList();
-
+          document.startArray(columnPlan.getFieldName(position));
           for(Value v : value.asSequence().getValue()) {
-            values.add(esValue(variable, v));
+            document.value(columnPlan.toIndexValue(position, v));
           }
-
-          xcb.field(fieldName, values);
+          document.endArray();
         } else {
-          xcb.field(fieldName, esValue(variable, value));
+          document.field(columnPlan.getFieldName(position), columnPlan.toIndexValue(position, value));
         }
 
-        variableSummaryHandler.stackVariable(getValueTable(), variable, value);
+        // summaries cannot be computed from a subset of the value sets
+        if(!partial) variableSummaryHandler.stackVariable(getValueTable(), columnPlan.getVariable(position), value);
       }
 
       @Override
       public void onComplete() {
         stopwatch.stop();
         if(stop) {
-          index.delete();
+          // the reader threads bulks are dropped, with the parent documents registered in them
+          try {
+            awaitSent();
+          } catch(RuntimeException e) {
+            log.warn("Bulk indexing of table {} failed while stopping", getValueTable().getTableReference(), e);
+          }
+          log.info("Indexing of table {} stopped after {} value sets", getValueTable().getTableReference(), done.sum());
+          // the indexed value sets are kept when the searches cannot see them (generation to be resumed) or when
+          // they only update a complete index (delta), otherwise a partially indexed table would be searched
+          if(!index.isGenerational() && !partial) index.delete();
           variableSummaryHandler.clearComputingSummaries(getValueTable());
         } else {
-          sendAndCheck(bulkRequest);
-          index.updateTimestamps();
+          sendRemaining();
+          try {
+            awaitSent();
+          } catch(RuntimeException e) {
+            variableSummaryHandler.clearComputingSummaries(getValueTable());
+            throw e;
+          }
+          parents.commit();
+          index.updateTimestamps(started);
           log.info("Indexed table {} in {}", getValueTable().getTableReference(), stopwatch);
+          if(partial) return;
 
-          // compute summaries in a new thread
-          new Thread(new Runnable() {
-            @Override
-            public void run() {
-              variableSummaryHandler.computeSummaries(getValueTable());
-            }
-          }).start();
+          summaryScheduler.schedule(getValueTable());
         }
       }
 
+      /**
+       * Merge what is left in the reader threads bulks and send it.
+       */
+      private void sendRemaining() {
+        BulkBuffer remaining = newBulkBuffer();
+        threadBulkBuffers.drainTo(remaining, Indexer.this::sendIfFull);
+        send(remaining);
+      }
+
       @Override
       public boolean isCancelled() {
-        return stop;
+        return stop || hasSendFailed();
       }
 
-      /**
-       * OPAL-1158: missing values are indexed as null for continuous variables
-       *
-       * @param variable the variable
-       * @param value the value
-       * @return an object
-       */
-      @Nullable
-      private Object esValue(Variable variable, Value value) {
-        switch(natures.get(variable)) {
-          case CONTINUOUS:
-            if(variable.isMissingValue(value)) {
-              return null;
-            }
-        }
-        if(value.isNull()) return null;
-        Object obj = value.getValue();
-        if(value.getValueType() == DateType.get()) {
-          return obj.toString(); // ie MagmaDate.toString()
-        }
-        return obj;
-      }
     }
 
   }
 
-  private class ESValueTableValuesIndex extends ESValueTableIndex implements ValueTableValuesIndex {
+  class ESValueTableValuesIndex extends ESValueTableIndex implements ValueTableValuesIndex {
+
+    static final String VALUE_SET_TYPE = "ValueSet";
+
+    private static final String VARIABLES_STATE = "variables";
+
+    private static final String CHECKPOINT_STATE = "checkpoint";
 
     private ESValueTableValuesIndex(ValueTable vt) {
       super(vt);
@@ -237,7 +488,7 @@ public class ESValuesIndexManager extends ESIndexManager implements ValuesIndexM
 
     @Override
     public String getIndexType() {
-      return "ValueSet";
+      return VALUE_SET_TYPE;
     }
 
     @Override
@@ -258,7 +509,149 @@ public class ESValuesIndexManager extends ESIndexManager implements ValuesIndexM
 
     @Override
     protected XContentBuilder updateMapping(ESMapping mapping) {
-      return ValueTableMapping.updateMapping(resolveTable(), mapping);
+      return ValueTableMapping.updateMapping(getIndexType(), resolveTable(), mapping);
+    }
+
+    /**
+     * Get the identifier of the document holding the value set of an entity.
+     *
+     * @param identifier entity identifier
+     * @return
+     */
+    String getDocumentId(String identifier) {
+      return getValueTableReference() + "-" + identifier;
+    }
+
+    /**
+     * Prepare the indexing of the parent document of an entity, in the shard of the table when routed by table.
+     *
+     * @param entityType
+     * @param identifier entity identifier
+     * @return
+     */
+    IndexRequestBuilder prepareIndexEntity(String entityType, String identifier) {
+      IndexRequestBuilder request = esSearchService.getClient().prepareIndex(getWriteIndexName(), entityType, identifier)
+          .setSource("{\"identifier\":\"" + identifier + "\"}");
+      if(getRouting() != null) request.setRouting(getRouting());
+      return request;
+    }
+
+    /**
+     * Prepare the indexing of the value set of an entity. The routing is only set when routed by table, as a null
+     * routing would clear the one set from the parent.
+     *
+     * @param identifier entity identifier
+     * @param source
+     * @return
+     */
+    IndexRequestBuilder prepareIndexValueSet(String identifier, byte[] source) {
+      IndexRequestBuilder request = esSearchService.getClient()
+          .prepareIndex(getWriteIndexName(), getIndexType(), getDocumentId(identifier)).setParent(identifier)
+          .setSource(source);
+      if(getRouting() != null) request.setRouting(getRouting());
+      return request;
+    }
+
+    /**
+     * Prepare the deletion of the value set of an entity, routed as it was indexed.
+     *
+     * @param identifier entity identifier
+     * @return
+     */
+    DeleteRequestBuilder prepareDeleteValueSet(String identifier) {
+      DeleteRequestBuilder request = esSearchService.getClient()
+          .prepareDelete(getWriteIndexName(), getIndexType(), getDocumentId(identifier)).setParent(identifier);
+      if(getRouting() != null) request.setRouting(getRouting());
+      return request;
+    }
+
+    /**
+     * Get the identifiers of the entities which value sets are in the index.
+     *
+     * @return
+     */
+    Set<String> getIndexedIdentifiers() {
+      Set<String> identifiers = Sets.newHashSet();
+      int prefixLength = getDocumentId("").length();
+      esSearchService.getClient().admin().indices().prepareRefresh(getWriteIndexName()).execute().actionGet();
+      SearchRequestBuilder search = esSearchService.getClient().prepareSearch() //
+          .setIndices(getWriteIndexName()) //
+          .setTypes(getIndexType()) //
+          .setQuery(QueryBuilders.termQuery("reference", getValueTableReference())) //
+          .setNoFields();
+      if(getRouting() != null) search.setRouting(getRouting());
+      ScrollHelper.forEachHit(esSearchService.getClient(), search, hit -> identifiers.add(hit.getId().substring(prefixLength)));
+      return identifiers;
+    }
+
+    /**
+     * A delta synchronization requires the table to have been fully indexed with the same variables.
+     *
+     * @return
+     */
+    boolean canSyncDelta() {
+      Map<String, Object> state = readStoredState();
+      return state.get(IndexStateStore.LAST_UPDATE_FIELD) != null &&
+          getVariablesSignature().equals(state.get(VARIABLES_STATE));
+    }
+
+    @Override
+    protected void updateState(Map<String, Object> fields) {
+      fields.put(VARIABLES_STATE, getVariablesSignature());
+      fields.put(CHECKPOINT_STATE, null);
+    }
+
+    /**
+     * Record that a full synchronization has started, so that it can be resumed if it does not complete.
+     */
+    void saveCheckpoint() {
+      String checkpoint = getCheckpoint();
+      if(checkpoint == null) return;
+      Map<String, Object> fields = Maps.newHashMap();
+      fields.put(CHECKPOINT_STATE, checkpoint);
+      fields.put(IndexStateStore.STATUS_FIELD, IndexStateStore.STATUS_SYNCING);
+      putState(fields);
+    }
+
+    /**
+     * An interrupted full synchronization can be resumed if neither the table values nor its variables have changed
+     * since it started, and if the table index generation it was building is still there.
+     *
+     * @return
+     */
+    boolean canResume() {
+      Map<String, Object> state = readStoredState();
+      String checkpoint = getCheckpoint();
+      return state.get(IndexStateStore.LAST_UPDATE_FIELD) == null && checkpoint != null &&
+          checkpoint.equals(state.get(CHECKPOINT_STATE)) && (!isGenerational() || getSuspendedGeneration() != null);
+    }
+
+    @Nullable
+    private String getCheckpoint() {
+      Value lastUpdate = resolveTable().getTimestamps().getLastUpdate();
+      return lastUpdate.isNull() ? null : lastUpdate.toString() + "|" + getVariablesSignature();
+    }
+
+    /**
+     * Hash of the indexed variables definition: values have to be re-indexed when it changes.
+     *
+     * @return
+     */
+    private String getVariablesSignature() {
+      Hasher hasher = Hashing.md5().newHasher();
+      for(Variable variable : getVariables()) {
+        hasher.putString(variable.getName(), Charsets.UTF_8) //
+            .putString(variable.getValueType().getName(), Charsets.UTF_8) //
+            .putBoolean(variable.isRepeatable());
+        for(Attribute attribute : variable.getAttributes()) {
+          hasher.putString(AttributeMapping.getFieldName(attribute), Charsets.UTF_8) //
+              .putString(attribute.getValue().toString(), Charsets.UTF_8);
+        }
+        for(Category category : variable.getCategories()) {
+          hasher.putString(category.getName(), Charsets.UTF_8).putBoolean(category.isMissing());
+        }
+      }
+      return hasher.hash().toString();
     }
 
     @Override
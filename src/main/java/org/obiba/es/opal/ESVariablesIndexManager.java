@@ -11,7 +11,6 @@ package org.obiba.es.opal;
 
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
@@ -22,6 +21,7 @@ import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.search.SearchHit;
 import org.obiba.es.opal.mapping.AttributeMapping;
 import org.obiba.es.opal.mapping.ValueTableVariablesMapping;
+import org.obiba.es.opal.support.BulkBuffer;
 import org.obiba.es.opal.support.ESIndexManager;
 import org.obiba.es.opal.support.ESMapping;
 import org.obiba.magma.*;
@@ -84,17 +84,18 @@ public class ESVariablesIndexManager extends ESIndexManager implements Variables
 
     @Override
     protected void index() {
-      BulkRequestBuilder bulkRequest = esSearchService.getClient().prepareBulk();
+      BulkBuffer bulkBuffer = newBulkBuffer();
 
       for(Variable variable : valueTable.getVariables()) {
-        bulkRequest = indexVariable(variable, bulkRequest);
+        indexVariable(variable, bulkBuffer);
       }
 
-      sendAndCheck(bulkRequest);
+      send(bulkBuffer);
+      awaitSent();
       index.updateTimestamps();
     }
 
-    private BulkRequestBuilder indexVariable(Variable variable, BulkRequestBuilder bulkRequest) {
+    private void indexVariable(Variable variable, BulkBuffer bulkBuffer) {
       String fullName = valueTable.getDatasource().getName() + "." + valueTable.getName() + ":" + variable.getName();
       try {
         XContentBuilder xcb = XContentFactory.jsonBuilder().startObject();
@@ -113,15 +114,12 @@ public class ESVariablesIndexManager extends ESIndexManager implements Variables
           indexVariableCategories(variable, xcb);
         }
 
-        bulkRequest.add(esSearchService.getClient().prepareIndex(index.getIndexName(), index.getIndexType(), fullName)
+        bulkBuffer.add(esSearchService.getClient().prepareIndex(index.getIndexName(), index.getIndexType(), fullName)
             .setSource(xcb.endObject()));
-        if(bulkRequest.numberOfActions() >= ES_BATCH_SIZE) {
-          return sendAndCheck(bulkRequest);
-        }
+        sendIfFull(bulkBuffer);
       } catch(IOException e) {
         throw new RuntimeException(e);
       }
-      return bulkRequest;
     }
 
     private void indexVariableParameters(Variable variable, XContentBuilder xcb) throws IOException {
@@ -9,6 +9,7 @@
  */
 package org.obiba.es.opal.mapping;
 
+import com.google.common.collect.Maps;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 import org.obiba.es.opal.support.ESMapping;
@@ -16,8 +17,10 @@ import org.obiba.magma.ValueTable;
 import org.obiba.magma.Variable;
 import org.obiba.magma.type.DateTimeType;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.Date;
+import java.util.Map;
 
 public class ValueTableMapping {
 
@@ -54,13 +57,30 @@ public class ValueTableMapping {
     }
   }
 
-  public static XContentBuilder updateMapping(ValueTable valueTable, ESMapping mapping) {
+  /**
+   * Get the mapping of the table's variables that are not mapped yet, to be merged with the index mapping.
+   *
+   * @param indexType
+   * @param valueTable
+   * @param mapping current index mapping, not modified
+   * @return null if all the variables are mapped
+   */
+  @Nullable
+  public static XContentBuilder updateMapping(String indexType, ValueTable valueTable, ESMapping mapping) {
+    Map<String, Object> properties = Maps.newHashMap();
     VariableMappings variableMappings = new VariableMappings();
     for(Variable variable : valueTable.getVariables()) {
-      variableMappings.map(valueTable, variable, mapping);
+      variableMappings.map(valueTable, variable, mapping, properties);
     }
+    if(properties.isEmpty()) return null;
     try {
-      return mapping.toXContent();
+      XContentBuilder update = XContentFactory.jsonBuilder().startObject().startObject(indexType);
+      // the parent type cannot be changed and the meta data is replaced: both have to be repeated
+      update.startObject("_parent").field("type", valueTable.getEntityType()).endObject();
+      update.field("_meta", mapping.meta().asMap());
+      update.field("properties", properties);
+      return update.endObject() // type
+          .endObject(); // mapping
     } catch(IOException e) {
       throw new RuntimeException(e);
     }
@@ -40,14 +40,22 @@ public class VariableMappings {
     }
   }
 
-  public void map(ValueTable table, Variable variable, ESMapping mapping) {
+  /**
+   * Add the mapping of the variable's field to the new properties, if it is not in the current mapping.
+   *
+   * @param table
+   * @param variable
+   * @param mapping current mapping
+   * @param newProperties
+   */
+  public void map(ValueTable table, Variable variable, ESMapping mapping, Map<String, Object> newProperties) {
     String fieldName = MappingHelper.toFieldName(table.getTableReference(), variable);
     if(!mapping.properties().hasProperty(fieldName)) {
       Map<String, Object> fieldMapping = Maps.newHashMap();
       valueTypeMappings.forType(variable.getValueType()).map(fieldMapping);
       for(VariableMapping variableMapping : mappings)
         variableMapping.map(variable, fieldMapping);
-      mapping.properties().setProperty(fieldName, fieldMapping);
+      newProperties.put(fieldName, fieldMapping);
     }
   }
 
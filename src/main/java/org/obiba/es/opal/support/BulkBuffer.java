@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.client.Client;
+
+/**
+ * Accumulates index and delete actions until the {@link BulkPolicy} says the bulk request is full.
+ * Not thread-safe.
+ */
+public class BulkBuffer {
+
+  private final Client client;
+
+  private final BulkPolicy policy;
+
+  private BulkRequestBuilder bulkRequest;
+
+  private long firstActionTime;
+
+  public BulkBuffer(Client client, BulkPolicy policy) {
+    this.client = client;
+    this.policy = policy;
+    bulkRequest = client.prepareBulk();
+  }
+
+  public BulkBuffer add(IndexRequestBuilder request) {
+    touch();
+    bulkRequest.add(request);
+    return this;
+  }
+
+  public BulkBuffer add(DeleteRequestBuilder request) {
+    touch();
+    bulkRequest.add(request);
+    return this;
+  }
+
+  public int numberOfActions() {
+    return bulkRequest.numberOfActions();
+  }
+
+  public long estimatedSizeInBytes() {
+    return bulkRequest.request().estimatedSizeInBytes();
+  }
+
+  public boolean isEmpty() {
+    return numberOfActions() == 0;
+  }
+
+  /**
+   * Check the buffered actions against the policy. The age is evaluated when this method is called,
+   * there is no timer: a buffer that does not receive actions anymore must be drained explicitly.
+   *
+   * @return
+   */
+  public boolean isFull() {
+    return policy.isFull(numberOfActions(), estimatedSizeInBytes(),
+        System.currentTimeMillis() - firstActionTime);
+  }
+
+  /**
+   * Move the buffered actions to another buffer.
+   *
+   * @param target
+   */
+  public void drainTo(BulkBuffer target) {
+    if (isEmpty()) return;
+    target.touch();
+    target.bulkRequest.request().add(drain().request().requests());
+  }
+
+  /**
+   * Get the buffered bulk request and start a new one.
+   *
+   * @return
+   */
+  public BulkRequestBuilder drain() {
+    BulkRequestBuilder drained = bulkRequest;
+    bulkRequest = client.prepareBulk();
+    firstActionTime = 0;
+    return drained;
+  }
+
+  private void touch() {
+    if (isEmpty()) firstActionTime = System.currentTimeMillis();
+  }
+}
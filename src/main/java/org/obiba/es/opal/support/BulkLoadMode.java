@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.Map;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Turns off the refresh and reduces the replicas of an index while it is being loaded by one or more
+ * synchronizations, and restores its settings when the last one completes.
+ */
+public class BulkLoadMode {
+
+  private static final Logger log = LoggerFactory.getLogger(BulkLoadMode.class);
+
+  private static final String REFRESH_INTERVAL = "index.refresh_interval";
+
+  private static final String NUMBER_OF_REPLICAS = "index.number_of_replicas";
+
+  private static final String DEFAULT_REFRESH_INTERVAL = "1s";
+
+  private final Client client;
+
+  private final int replicas;
+
+  private final boolean forceMerge;
+
+  private final Map<String, Load> loads = Maps.newHashMap();
+
+  /**
+   * @param client
+   * @param replicas number of replicas while loading, unchanged if negative
+   * @param forceMerge whether the index segments are to be merged after loading
+   */
+  public BulkLoadMode(Client client, int replicas, boolean forceMerge) {
+    this.client = client;
+    this.replicas = replicas;
+    this.forceMerge = forceMerge;
+  }
+
+  /**
+   * Start loading an index.
+   *
+   * @param indexName
+   * @param indexSettings the index settings to be restored (without the "index." prefix)
+   */
+  public synchronized void begin(String indexName, Settings indexSettings) {
+    Load load = loads.get(indexName);
+    if (load == null) {
+      load = new Load(indexSettings);
+      loads.put(indexName, load);
+      Settings.Builder bulkSettings = Settings.settingsBuilder().put(REFRESH_INTERVAL, "-1");
+      if (replicas >= 0) bulkSettings.put(NUMBER_OF_REPLICAS, replicas);
+      log.debug("Index [{}] enters bulk load mode", indexName);
+      updateSettings(indexName, bulkSettings.build());
+    }
+    load.count++;
+  }
+
+  /**
+   * Complete the loading of an index: its settings are restored if no other load is in progress.
+   *
+   * @param indexName
+   */
+  public synchronized void end(String indexName) {
+    Load load = loads.get(indexName);
+    if (load == null) return;
+    load.count--;
+    if (load.count > 0) return;
+    loads.remove(indexName);
+    log.debug("Index [{}] leaves bulk load mode", indexName);
+    restore(indexName, load.indexSettings);
+  }
+
+  /**
+   * Restore the settings of an index that was left in bulk load mode, for instance by a synchronization interrupted
+   * by a shutdown, unless it is being loaded.
+   *
+   * @param indexMetaData
+   * @param indexSettings the index settings to be restored (without the "index." prefix)
+   */
+  public synchronized void recover(IndexMetaData indexMetaData, Settings indexSettings) {
+    String indexName = indexMetaData.getIndex();
+    if (loads.containsKey(indexName) || "-1".equals(indexSettings.get("refresh_interval"))) return;
+    if (!"-1".equals(indexMetaData.getSettings().get(REFRESH_INTERVAL))) return;
+    log.info("Index [{}] was left in bulk load mode, restoring its settings", indexName);
+    restore(indexName, indexSettings);
+  }
+
+  private void restore(String indexName, Settings indexSettings) {
+    Settings.Builder restored = Settings.settingsBuilder()
+        .put(REFRESH_INTERVAL, indexSettings.get("refresh_interval", DEFAULT_REFRESH_INTERVAL));
+    if (replicas >= 0 && indexSettings.get("number_of_replicas") != null)
+      restored.put(NUMBER_OF_REPLICAS, indexSettings.get("number_of_replicas"));
+    if (updateSettings(indexName, restored.build())) {
+      try {
+        client.admin().indices().prepareRefresh(indexName).execute().actionGet();
+        if (forceMerge) client.admin().indices().prepareForceMerge(indexName).execute();
+      } catch (RuntimeException e) {
+        log.warn("Unable to refresh index [{}]", indexName, e);
+      }
+    }
+  }
+
+  private boolean updateSettings(String indexName, Settings settings) {
+    try {
+      client.admin().indices().prepareUpdateSettings(indexName).setSettings(settings).execute().actionGet();
+      return true;
+    } catch (RuntimeException e) {
+      log.warn("Unable to update settings of index [{}]: {}", indexName, settings.getAsMap(), e);
+      return false;
+    }
+  }
+
+  private static class Load {
+
+    private final Settings indexSettings;
+
+    private int count = 0;
+
+    private Load(Settings indexSettings) {
+      this.indexSettings = indexSettings;
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Submits bulk requests asynchronously while limiting the number of requests in flight: submitting blocks the caller
+ * until a slot is available. The first failure is recorded and reported when waiting for the pipeline completion.
+ */
+public class BulkPipeline {
+
+  private static final Logger log = LoggerFactory.getLogger(BulkPipeline.class);
+
+  public static final int DEFAULT_CONCURRENT_REQUESTS = 2;
+
+  private final int concurrentRequests;
+
+  private final Semaphore inFlight;
+
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  /**
+   * @param concurrentRequests maximum number of bulk requests in flight, requests are sent synchronously if not positive
+   */
+  public BulkPipeline(int concurrentRequests) {
+    this.concurrentRequests = Math.max(concurrentRequests, 0);
+    inFlight = new Semaphore(this.concurrentRequests);
+  }
+
+  /**
+   * Send the bulk request, waiting for an in-flight slot to be released if necessary. Does nothing once a
+   * previous request has failed.
+   *
+   * @param bulkRequest
+   */
+  public void submit(BulkRequestBuilder bulkRequest) {
+    if (hasFailed() || bulkRequest.numberOfActions() == 0) return;
+    if (concurrentRequests == 0) {
+      try {
+        onResponse(bulkRequest.execute().actionGet());
+      } catch (RuntimeException e) {
+        onFailure(e);
+      }
+      return;
+    }
+    acquire(1);
+    try {
+      bulkRequest.execute(new ActionListener<BulkResponse>() {
+        @Override
+        public void onResponse(BulkResponse bulkResponse) {
+          try {
+            BulkPipeline.this.onResponse(bulkResponse);
+          } finally {
+            inFlight.release();
+          }
+        }
+
+        @Override
+        public void onFailure(Throwable e) {
+          try {
+            BulkPipeline.this.onFailure(e);
+          } finally {
+            inFlight.release();
+          }
+        }
+      });
+    } catch (RuntimeException e) {
+      inFlight.release();
+      onFailure(e);
+    }
+  }
+
+  public boolean hasFailed() {
+    return failure.get() != null;
+  }
+
+  /**
+   * Wait for all the in-flight bulk requests to complete.
+   *
+   * @throws RuntimeException if one of the submitted bulk requests has failed
+   */
+  public void await() {
+    if (concurrentRequests > 0) {
+      acquire(concurrentRequests);
+      inFlight.release(concurrentRequests);
+    }
+    Throwable e = failure.get();
+    if (e != null) throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+  }
+
+  private void acquire(int permits) {
+    try {
+      inFlight.acquire(permits);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for bulk requests", e);
+    }
+  }
+
+  private void onResponse(BulkResponse bulkResponse) {
+    if (bulkResponse.hasFailures()) {
+      // process failures by iterating through each bulk response item
+      onFailure(new RuntimeException(bulkResponse.buildFailureMessage()));
+    }
+  }
+
+  private void onFailure(Throwable e) {
+    if (failure.compareAndSet(null, e)) log.error("Bulk request failed: {}", e.getMessage());
+  }
+}
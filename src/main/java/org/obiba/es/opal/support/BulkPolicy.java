@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+/**
+ * Decides when a bulk request is to be sent: as soon as the number of actions, the estimated payload size
+ * or the age of the oldest buffered action reaches its threshold, whichever comes first.
+ */
+public class BulkPolicy {
+
+  public static final int DEFAULT_MAX_ACTIONS = 1000;
+
+  public static final long DEFAULT_MAX_BYTES = 5 * 1024 * 1024;
+
+  public static final long DEFAULT_FLUSH_INTERVAL = 5000;
+
+  private final int maxActions;
+
+  private final long maxBytes;
+
+  private final long flushInterval;
+
+  /**
+   * @param maxActions maximum number of actions in a bulk request (no limit if not positive)
+   * @param maxBytes maximum estimated size of a bulk request in bytes (no limit if not positive)
+   * @param flushInterval maximum time in milliseconds an action is buffered (no limit if not positive)
+   */
+  public BulkPolicy(int maxActions, long maxBytes, long flushInterval) {
+    this.maxActions = maxActions;
+    this.maxBytes = maxBytes;
+    this.flushInterval = flushInterval;
+  }
+
+  public static BulkPolicy defaultPolicy() {
+    return new BulkPolicy(DEFAULT_MAX_ACTIONS, DEFAULT_MAX_BYTES, DEFAULT_FLUSH_INTERVAL);
+  }
+
+  public int getMaxActions() {
+    return maxActions;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public long getFlushInterval() {
+    return flushInterval;
+  }
+
+  /**
+   * Check whether a bulk request has reached one of the thresholds.
+   *
+   * @param actions number of buffered actions
+   * @param bytes estimated size of the buffered actions
+   * @param age time in milliseconds since the first action was buffered
+   * @return
+   */
+  public boolean isFull(int actions, long bytes, long age) {
+    if (actions <= 0) return false;
+    return (maxActions > 0 && actions >= maxActions)
+        || (maxBytes > 0 && bytes >= maxBytes)
+        || (flushInterval > 0 && age >= flushInterval);
+  }
+
+  @Override
+  public String toString() {
+    return "BulkPolicy{maxActions=" + maxActions + ", maxBytes=" + maxBytes + ", flushInterval=" + flushInterval + "}";
+  }
+}
@@ -11,28 +11,30 @@ package org.obiba.es.opal.support;
 
 import java.io.IOException;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.annotation.Nullable;
 import javax.validation.constraints.NotNull;
 
-import org.elasticsearch.action.admin.cluster.state.ClusterStateResponse;
+import org.elasticsearch.action.admin.indices.alias.Alias;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
+import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsRequest;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequestBuilder;
 import org.elasticsearch.action.search.SearchRequestBuilder;
-import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.client.IndicesAdminClient;
+import org.elasticsearch.cluster.metadata.AliasOrIndex;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
-import org.elasticsearch.cluster.metadata.MappingMetaData;
-import org.elasticsearch.common.collect.ImmutableOpenMap;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.search.SearchHit;
 import org.obiba.es.opal.ESSearchService;
 import org.obiba.magma.Timestamps;
 import org.obiba.magma.Value;
@@ -46,41 +48,151 @@ import org.obiba.opal.spi.search.ValueTableIndex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 
 public abstract class ESIndexManager implements IndexManager {
 
   private static final Logger log = LoggerFactory.getLogger(ESIndexManager.class);
 
-  protected static final int ES_BATCH_SIZE = 100;
-
   protected final ESSearchService esSearchService;
 
-  private final Map<String, ValueTableIndex> indices = Maps.newHashMap();
+  public static final int DEFAULT_MAX_INDICES = 1000;
+
+  // table index handles, by table reference
+  private final Cache<String, ValueTableIndex> indices;
 
   protected ESIndexManager(ESSearchService esSearchService) {
     this.esSearchService = esSearchService;
+    indices = CacheBuilder.newBuilder() //
+        .maximumSize(esSearchService.getIndexCacheMaxSize()) //
+        .recordStats() //
+        .build();
   }
 
   @Override
   public ValueTableIndex getIndex(@NotNull ValueTable vt) {
     String tableFullName = vt.getTableReference();
-    ValueTableIndex index = indices.computeIfAbsent(tableFullName, k -> createIndex(vt));
-    return index;
+    try {
+      return indices.get(tableFullName, () -> createIndex(vt));
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Get the statistics of the table index handles cache.
+   *
+   * @return
+   */
+  public CacheStats getIndexCacheStats() {
+    return indices.stats();
   }
 
   @Override
   public boolean hasIndex(@NotNull ValueTable valueTable) {
-    ClusterStateResponse resp = esSearchService.getClient().admin().cluster().prepareState().execute().actionGet();
-    ValueTableIndex valueTableIndex = getIndex(valueTable);
-    IndexMetaData indexMetaData = resp.getState().metaData().index(valueTableIndex.getIndexName());
-    if (indexMetaData == null) return false;
-    ImmutableOpenMap<String, MappingMetaData> mappings = indexMetaData.getMappings();
-    return mappings.containsKey(valueTableIndex.getIndexType());
+    return getIndexWithState(valueTable).getState().indexed;
+  }
+
+  /**
+   * Get the index status of several tables from a single read of the cluster meta data.
+   *
+   * @param valueTables
+   * @return index status by table reference
+   */
+  public Map<String, IndexStatus> getIndexStatus(@NotNull Iterable<ValueTable> valueTables) {
+    readStates(valueTables);
+    Map<String, IndexStatus> statuses = Maps.newLinkedHashMap();
+    for (ValueTable valueTable : valueTables) {
+      ESValueTableIndex index = (ESValueTableIndex) getIndex(valueTable);
+      IndexState state = index.getState();
+      statuses.put(valueTable.getTableReference(), new IndexStatus(state.indexed, state.getLastUpdate(),
+          Timestampeds.lastUpdateComparator.compare(index, valueTable) >= 0));
+    }
+    return statuses;
+  }
+
+  /**
+   * Get the index of a table with an up to date state. The tables are usually checked one after the other, so if the
+   * state of the table has to be read, the states of all the tables of its datasource are read with it.
+   *
+   * @param valueTable
+   * @return
+   */
+  private ESValueTableIndex getIndexWithState(ValueTable valueTable) {
+    ESValueTableIndex index = (ESValueTableIndex) getIndex(valueTable);
+    IndexMetadataCache cache = esSearchService.getIndexMetadataCache();
+    if (cache != null && !index.hasState(cache.getMetaData(), cache.getTtl()))
+      readStates(Iterables.concat(Collections.singleton(valueTable), valueTable.getDatasource().getValueTables()));
+    return index;
+  }
+
+  /**
+   * Read the states of the tables which state is not cached, from a single read of the cluster meta data and of the
+   * index state store.
+   *
+   * @param valueTables
+   */
+  private void readStates(Iterable<ValueTable> valueTables) {
+    IndexMetadataCache cache = esSearchService.getIndexMetadataCache();
+    MetaData metaData = cache.getMetaData();
+    Map<String, ESValueTableIndex> stale = Maps.newHashMap();
+    for (ValueTable valueTable : valueTables) {
+      ESValueTableIndex index = (ESValueTableIndex) getIndex(valueTable);
+      if (!index.hasState(metaData, cache.getTtl())) stale.put(index.name, index);
+    }
+    if (stale.isEmpty()) return;
+    Map<String, Map<String, Object>> stored = esSearchService.getIndexStateStore().getAll(getName(), stale.keySet());
+    for (ESValueTableIndex index : stale.values()) index.readState(metaData, stored.get(index.name));
   }
 
   protected abstract ValueTableIndex createIndex(@NotNull ValueTable vt);
 
+  /**
+   * How the tables documents are distributed in physical indices.
+   *
+   * @return
+   */
+  protected IndexLayout getLayout() {
+    return IndexLayout.SHARED;
+  }
+
+  /**
+   * Whether the documents of a table are routed to the same shard, using the table reference as the routing value,
+   * instead of the default routing by document or parent identifier.
+   *
+   * @return
+   */
+  protected boolean isRoutedByTable() {
+    return false;
+  }
+
+  /**
+   * Whether the indices of this manager can be put in bulk load mode during the large synchronizations: this drops
+   * their replicas and their refresh, which is not worth it for the small documents of the tables metadata.
+   *
+   * @return
+   */
+  protected boolean isBulkLoadable() {
+    return false;
+  }
+
+  /**
+   * Called when an index generation of a table has been deleted.
+   *
+   * @param indexName
+   */
+  protected void onGenerationDropped(String indexName) {
+  }
+
   @Override
   public boolean isEnabled() {
     return esSearchService.getConfig().isEnabled();
@@ -94,12 +206,15 @@ public abstract class ESIndexManager implements IndexManager {
   @Override
   public void drop() {
     esSearchService.getClient().admin().indices().prepareDelete(getName()).execute();
-    indices.clear();
+    esSearchService.getIndexStateStore().deleteAll(getName());
+    esSearchService.getIndexMetadataCache().invalidate();
+    if (esSearchService.getQueryResultCache() != null) esSearchService.getQueryResultCache().invalidateAll();
+    indices.invalidateAll();
   }
 
   @Override
   public boolean isIndexUpToDate(@NotNull ValueTable valueTable) {
-    return getIndex(valueTable).isUpToDate();
+    return Timestampeds.lastUpdateComparator.compare(getIndexWithState(valueTable), valueTable) >= 0;
   }
 
   protected String esIndexName() {
@@ -121,16 +236,22 @@ public abstract class ESIndexManager implements IndexManager {
     @NotNull
     private final ESValueTableIndex index;
 
-    private final int total;
+    private volatile int total;
 
-    protected int done = 0;
+    private final BulkPolicy bulkPolicy;
 
-    protected boolean stop = false;
+    private final BulkPipeline bulkPipeline;
+
+    protected final LongAdder done = new LongAdder();
+
+    protected volatile boolean stop = false;
 
     protected ESIndexer(@NotNull ValueTable table, @NotNull ESValueTableIndex index) {
       valueTable = table;
       this.index = index;
       total = valueTable.getVariableEntityCount();
+      bulkPolicy = esSearchService.getBulkPolicy();
+      bulkPipeline = new BulkPipeline(esSearchService.getBulkConcurrentRequests());
     }
 
     @Override
@@ -140,26 +261,148 @@ public abstract class ESIndexManager implements IndexManager {
 
     @Override
     public void run() {
+      IndexSyncCoordinator coordinator = esSearchService.getIndexSyncCoordinator();
+      IndexSyncCoordinator.Ticket ticket = coordinator.admit(valueTable.getTableReference(),
+          esSearchService.getIndexSyncPriority(valueTable.getTableReference()), total, () -> stop);
+      if (ticket == null) {
+        log.info("Synchronization of {} cancelled before it started", valueTable.getTableReference());
+        return;
+      }
+      try {
+        recoverBulkLoad();
+        synchronize();
+      } finally {
+        coordinator.release(ticket);
+      }
+    }
+
+    /**
+     * Restore the settings of the index if a synchronization interrupted by a shutdown left it in bulk load mode.
+     */
+    private void recoverBulkLoad() {
+      if (!isBulkLoadable()) return;
+      IndexMetaData indexMetaData = esSearchService.getIndexMetadataCache().getIndexMetaData(index.getIndexName());
+      if (indexMetaData != null) esSearchService.getBulkLoadMode().recover(indexMetaData, getIndexSettings());
+    }
+
+    /**
+     * Synchronize the table index, once admitted by the coordinator.
+     */
+    protected void synchronize() {
       log.debug("Updating ValueTable index {}", index.getValueTableReference());
+      if (index.isGenerational()) {
+        runGeneration();
+        return;
+      }
       index.delete();
       index.createIndex();
-      index();
+      bulkLoad(this::index);
     }
 
-    protected BulkRequestBuilder sendAndCheck(BulkRequestBuilder bulkRequest) {
-      if (bulkRequest.numberOfActions() > 0) {
-        BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-        if (bulkResponse.hasFailures()) {
-          // process failures by iterating through each bulk response item
-          throw new RuntimeException(bulkResponse.buildFailureMessage());
-        }
-        return esSearchService.getClient().prepareBulk();
+    /**
+     * Index the table in a new generation, which replaces the current one only if the indexing completes: readers
+     * never see a partially indexed table.
+     */
+    private void runGeneration() {
+      runGeneration(null, () -> {
+        index.createIndex();
+        bulkLoad(this::index);
+      });
+    }
+
+    /**
+     * Index the table in a new or in a resumed generation. The generation is committed if the indexing completes,
+     * dropped if it fails and kept for a resume if the synchronization is stopped.
+     *
+     * @param resumed generation left by an interrupted synchronization, null to begin a new one
+     * @param indexing
+     */
+    protected void runGeneration(@Nullable String resumed, Runnable indexing) {
+      boolean completed = false;
+      try {
+        if (resumed == null) index.beginGeneration();
+        else index.resumeGeneration(resumed);
+        indexing.run();
+        if (stop) index.suspendGeneration();
+        else index.commitGeneration();
+        completed = true;
+      } finally {
+        if (!completed) index.abortGeneration();
+      }
+    }
+
+    /**
+     * Run the indexing with the index in bulk load mode, if enabled and if there are enough documents to index.
+     *
+     * @param indexing
+     */
+    protected void bulkLoad(Runnable indexing) {
+      if (!esSearchService.isBulkLoad() || !isBulkLoadable() || total < esSearchService.getBulkLoadThreshold()) {
+        indexing.run();
+        return;
       }
-      return bulkRequest;
+      String indexName = index.getWriteIndexName();
+      esSearchService.getBulkLoadMode().begin(indexName, getIndexSettings());
+      try {
+        indexing.run();
+      } finally {
+        esSearchService.getBulkLoadMode().end(indexName);
+      }
+    }
+
+    protected BulkBuffer newBulkBuffer() {
+      return new BulkBuffer(esSearchService.getClient(), bulkPolicy);
+    }
+
+    /**
+     * Send the buffered actions if the bulk policy says so.
+     *
+     * @param bulkBuffer
+     */
+    protected void sendIfFull(BulkBuffer bulkBuffer) {
+      if (bulkBuffer.isFull()) send(bulkBuffer);
+    }
+
+    /**
+     * Send the buffered actions, if any, without waiting for the response unless too many bulk requests are in flight.
+     *
+     * @param bulkBuffer
+     */
+    protected void send(BulkBuffer bulkBuffer) {
+      if (bulkBuffer.isEmpty()) return;
+      esSearchService.getIndexSyncCoordinator().throttle(bulkBuffer.numberOfActions(), bulkBuffer.estimatedSizeInBytes());
+      bulkPipeline.submit(bulkBuffer.drain());
+    }
+
+    /**
+     * Wait for all the sent bulk requests to complete.
+     *
+     * @throws RuntimeException if one of the bulk requests has failed
+     */
+    protected void awaitSent() {
+      bulkPipeline.await();
+    }
+
+    /**
+     * Whether a bulk request has failed, in which case there is no point in indexing more documents.
+     *
+     * @return
+     */
+    protected boolean hasSendFailed() {
+      return bulkPipeline.hasFailed();
     }
 
     protected abstract void index();
 
+    /**
+     * Set the number of entities that this synchronization is expected to process.
+     *
+     * @param total
+     */
+    protected void setTotal(int total) {
+      this.total = total;
+    }
+
     @Override
     public ValueTableIndex getValueTableIndex() {
       return index;
@@ -173,17 +416,17 @@ public abstract class ESIndexManager implements IndexManager {
 
     @Override
     public boolean hasStarted() {
-      return done > 0;
+      return done.sum() > 0;
     }
 
     @Override
     public boolean isComplete() {
-      return total > 0 && done >= total;
+      return total > 0 && done.sum() >= total;
     }
 
     @Override
     public float getProgress() {
-      return done / (float) total;
+      return done.sum() / (float) total;
     }
 
     @Override
@@ -194,15 +437,24 @@ public abstract class ESIndexManager implements IndexManager {
 
   protected abstract class ESValueTableIndex implements ValueTableIndex {
 
-    static final int MAX_SIZE = 10000;
-
     @NotNull
     protected final String name;
 
     @NotNull
     private final String valueTableReference;
 
-    private ESMapping esMapping;
+    @NotNull
+    private final String datasourceName;
+
+    private String physicalIndexName;
+
+    // physical index being built, if any
+    private volatile String generation;
+
+    // last update of the table state when the generation being built began
+    private Object previousLastUpdate;
+
+    private volatile IndexState state;
 
     /**
      * @param vt
@@ -210,12 +462,179 @@ public abstract class ESIndexManager implements IndexManager {
     protected ESValueTableIndex(@NotNull ValueTable vt) {
       name = indexName(vt);
       valueTableReference = vt.getTableReference();
+      datasourceName = vt.getDatasource().getName();
     }
 
     @NotNull
     @Override
     public String getIndexName() {
-      return getName();
+      switch (getLayout()) {
+        case DATASOURCE:
+          return getPhysicalIndexName(datasourceName);
+        case TABLE:
+          return getPhysicalIndexName(name);
+        default:
+          return getName();
+      }
+    }
+
+    /**
+     * Get the name of the index in which the documents are to be written: the table index generation being built or
+     * the one that is searched.
+     *
+     * @return
+     */
+    @NotNull
+    public String getWriteIndexName() {
+      String building = generation;
+      return building == null ? getIndexName() : building;
+    }
+
+    /**
+     * Get the custom routing value of the table's documents.
+     *
+     * @return null if the documents are routed by their identifier or by their parent
+     */
+    @Nullable
+    public String getRouting() {
+      return isRoutedByTable() ? valueTableReference : null;
+    }
+
+    /**
+     * Whether the table has its own index, which is rebuilt in a new generation on full synchronization and then
+     * swapped with the previous one behind the table alias.
+     *
+     * @return
+     */
+    public boolean isGenerational() {
+      return getLayout() == IndexLayout.TABLE;
+    }
+
+    /**
+     * Name of the index of the table's datasource or of the alias of the table's index: index names are lower case
+     * and the hash of the datasource or table name avoids collisions.
+     *
+     * @param indexedName
+     * @return
+     */
+    @NotNull
+    private String getPhysicalIndexName(String indexedName) {
+      if (physicalIndexName == null) {
+        String suffix = indexedName.toLowerCase().replaceAll("[\\\\/*?\"<>|,#: ]", "_");
+        physicalIndexName = getName() + "-" + suffix + "-" + Hashing.murmur3_32().hashString(indexedName, Charsets.UTF_8);
+      }
+      return physicalIndexName;
+    }
+
+    /**
+     * Start a new generation of the table index, that will be written until it is committed or aborted. The generation
+     * is recorded in the table state, so that it can be resumed or dropped after an interruption, and the table is
+     * not considered as indexed anymore until the generation is committed.
+     */
+    void beginGeneration() {
+      Map<String, Object> stored = readStoredState();
+      Object leftover = stored.get(IndexStateStore.GENERATION_FIELD);
+      if (leftover != null && !getAliasedIndices(getIndexName()).contains(leftover.toString())) {
+        log.info("Dropping incomplete index [{}]", leftover);
+        deleteGeneration(leftover.toString());
+      }
+      previousLastUpdate = stored.get(IndexStateStore.LAST_UPDATE_FIELD);
+      generation = getIndexName() + "-" + System.currentTimeMillis();
+      log.info("Building index [{}] for {}", generation, name);
+      Map<String, Object> fields = Maps.newHashMap();
+      fields.put(IndexStateStore.GENERATION_FIELD, generation);
+      fields.put(IndexStateStore.LAST_UPDATE_FIELD, null);
+      putState(fields);
+    }
+
+    /**
+     * Write again in the generation left by an interrupted synchronization.
+     *
+     * @param resumed
+     */
+    void resumeGeneration(String resumed) {
+      previousLastUpdate = null;
+      generation = resumed;
+      log.info("Resuming index [{}] for {}", generation, name);
+    }
+
+    /**
+     * Get the generation left by an interrupted synchronization, that can be resumed.
+     *
+     * @return null if there is none or if its index does not exist anymore
+     */
+    @Nullable
+    protected String getSuspendedGeneration() {
+      Object stored = readStoredState().get(IndexStateStore.GENERATION_FIELD);
+      if (stored == null) return null;
+      String indexName = stored.toString();
+      MetaData metaData = esSearchService.getIndexMetadataCache().getMetaData();
+      return IndexMetadataCache.getIndexMetaData(metaData, indexName) != null &&
+          !getAliasedIndices(getIndexName()).contains(indexName) ? indexName : null;
+    }
+
+    /**
+     * Make the table and the index manager aliases point atomically to the new generation, and delete the previous
+     * generations.
+     */
+    void commitGeneration() {
+      String alias = getIndexName();
+      List<String> previous = getAliasedIndices(alias);
+      IndicesAliasesRequestBuilder aliases = esSearchService.getClient().admin().indices().prepareAliases() //
+          .addAlias(generation, alias) //
+          .addAlias(generation, getName());
+      for (String indexName : previous) aliases.removeAlias(indexName, new String[] { alias, getName() });
+      aliases.execute().actionGet();
+      log.info("Index [{}] now points to [{}]", alias, generation);
+      generation = null;
+      putState(Collections.singletonMap(IndexStateStore.GENERATION_FIELD, null));
+      esSearchService.getIndexMetadataCache().invalidate();
+      invalidateQueryResults();
+      previous.forEach(this::deleteGeneration);
+    }
+
+    /**
+     * Stop writing the generation being built, which is kept to be resumed by the next synchronization.
+     */
+    void suspendGeneration() {
+      log.info("Index [{}] is incomplete, kept to be resumed", generation);
+      generation = null;
+    }
+
+    /**
+     * Delete the generation being built, if any, and restore the table state as it was before.
+     */
+    void abortGeneration() {
+      String building = generation;
+      generation = null;
+      if (building == null) return;
+      log.info("Dropping incomplete index [{}]", building);
+      deleteGeneration(building);
+      Map<String, Object> fields = Maps.newHashMap();
+      fields.put(IndexStateStore.GENERATION_FIELD, null);
+      fields.put(IndexStateStore.LAST_UPDATE_FIELD, previousLastUpdate);
+      putState(fields);
+    }
+
+    private List<String> getAliasedIndices(String alias) {
+      AliasOrIndex aliasOrIndex = esSearchService.getIndexMetadataCache().getMetaData().getAliasAndIndexLookup()
+          .get(alias);
+      if (aliasOrIndex == null || !aliasOrIndex.isAlias()) return Collections.emptyList();
+      List<String> indices = Lists.newArrayList();
+      for (IndexMetaData indexMetaData : aliasOrIndex.getIndices()) indices.add(indexMetaData.getIndex());
+      return indices;
+    }
+
+    private void deleteGeneration(String indexName) {
+      try {
+        esSearchService.getClient().admin().indices().prepareDelete(indexName).execute().actionGet();
+      } catch (IndexNotFoundException e) {
+        // already deleted
+      } catch (RuntimeException e) {
+        log.warn("Unable to delete index [{}]", indexName, e);
+      }
+      esSearchService.getIndexMetadataCache().invalidate();
+      onGenerationDropped(indexName);
     }
 
     @NotNull
@@ -224,98 +643,167 @@ public abstract class ESIndexManager implements IndexManager {
     }
 
     public void updateTimestamps() {
-      try {
-        // reset metadata cache
-        esMapping = null;
-        ESMapping mapping = readMapping();
-        //noinspection ConstantConditions
-        mapping.meta().setString(name, DateTimeType.get().valueOf(new Date()).toString());
-        esSearchService.getClient().admin().indices().preparePutMapping(getIndexName()).setType(getIndexType())
-            .setSource(mapping.toXContent()).execute().actionGet();
-        // reset metadata cache
-        esMapping = null;
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+      updateTimestamps(new Date());
+    }
+
+    /**
+     * Update the index timestamps once the table has been indexed.
+     *
+     * @param lastUpdate time as of which the index reflects the table, i.e. when the synchronization started reading it
+     */
+    public void updateTimestamps(Date lastUpdate) {
+      Map<String, Object> fields = Maps.newHashMap();
+      //noinspection ConstantConditions
+      fields.put(IndexStateStore.LAST_UPDATE_FIELD, DateTimeType.get().valueOf(lastUpdate).toString());
+      fields.put(IndexStateStore.STATUS_FIELD, IndexStateStore.STATUS_INDEXED);
+      fields.put(IndexStateStore.DOCUMENTS_FIELD, countDocuments());
+      updateState(fields);
+      putState(fields);
+      invalidateQueryResults();
+    }
+
+    /**
+     * Forget the cached results of the queries that may involve the table.
+     */
+    protected void invalidateQueryResults() {
+      QueryResultCache queryResultCache = esSearchService.getQueryResultCache();
+      if (queryResultCache != null) queryResultCache.invalidate(getValueTableReference());
+    }
+
+    /**
+     * Save some fields of the table's index state.
+     *
+     * @param fields
+     */
+    protected void putState(Map<String, Object> fields) {
+      esSearchService.getIndexStateStore().update(getName(), name, fields);
+      state = null;
+    }
+
+    /**
+     * Read the latest index state of the table.
+     *
+     * @return empty if the table has no state
+     */
+    protected Map<String, Object> readStoredState() {
+      return esSearchService.getIndexStateStore().get(getName(), name);
+    }
+
+    /**
+     * Count the documents of the table in the index being written.
+     *
+     * @return
+     */
+    private long countDocuments() {
+      String indexName = getWriteIndexName();
+      esSearchService.getClient().admin().indices().prepareRefresh(indexName).execute().actionGet();
+      SearchRequestBuilder search = esSearchService.getClient().prepareSearch(indexName).setTypes(getIndexType())
+          .setSize(0).setQuery(QueryBuilders.termQuery("reference", getValueTableReference()));
+      if (getRouting() != null) search.setRouting(getRouting());
+      return search.execute().actionGet().getHits().getTotalHits();
     }
 
     @Override
     public void delete() {
-      // reset metadata cache
-      esMapping = null;
       if (!esSearchService.isEnabled() || !esSearchService.isRunning()) return;
-      BulkRequestBuilder bulkRequest = esSearchService.getClient().prepareBulk();
-      // TODO remove table's items
-
+      if (isGenerational()) {
+        // the table has its own index(es)
+        getAliasedIndices(getIndexName()).forEach(this::deleteGeneration);
+        esSearchService.getIndexStateStore().delete(getName(), name);
+        state = null;
+        invalidateQueryResults();
+        return;
+      }
+      SearchRequestBuilder search = esSearchService.getClient().prepareSearch() //
+          .setIndices(getIndexName()) //
+          .setTypes(getIndexType()) //
+          .setQuery(QueryBuilders.termQuery("reference", getValueTableReference())) //
+          .addField("_parent") //
+          .addField("_routing");
+      if (getRouting() != null) search.setRouting(getRouting());
+      BulkBuffer bulkBuffer = new BulkBuffer(esSearchService.getClient(), esSearchService.getBulkPolicy());
+      BulkPipeline bulkPipeline = new BulkPipeline(esSearchService.getBulkConcurrentRequests());
+      LongAdder deleted = new LongAdder();
       try {
-        long total = MAX_SIZE;
-        int from = 0;
-        while (from < total) {
-          QueryBuilder query = QueryBuilders.termQuery("reference", getValueTableReference());
-          SearchRequestBuilder search = esSearchService.getClient().prepareSearch() //
-              .setIndices(getIndexName()) //
-              .setTypes(getIndexType()) //
-              .setQuery(query) //
-              .setFrom(from) //
-              .setSize(MAX_SIZE) //
-              .setNoFields();
-
-          SearchResponse response = search.execute().actionGet();
-          total = response.getHits().getTotalHits();
-          for (SearchHit hit : response.getHits()) {
-            DeleteRequestBuilder request = esSearchService.getClient().prepareDelete(getIndexName(), getIndexType(), hit.getId());
-            if (hit.getFields() != null && hit.getFields().containsKey("_parent")) {
-              String parent = hit.field("_parent").value();
-              request.setParent(parent);
-            }
-            bulkRequest.add(request);
+        long total = ScrollHelper.forEachHit(esSearchService.getClient(), search, hit -> {
+          DeleteRequestBuilder request = esSearchService.getClient().prepareDelete(getIndexName(), getIndexType(), hit.getId());
+          if (hit.getFields() != null && hit.getFields().containsKey("_parent")) {
+            String parent = hit.field("_parent").value();
+            request.setParent(parent);
           }
-          from = from + MAX_SIZE;
-        }
-
-        bulkRequest.execute().actionGet();
-      } catch (Exception e) {
-        //
+          if (hit.getFields() != null && hit.getFields().containsKey("_routing")) {
+            String routing = hit.field("_routing").value();
+            request.setRouting(routing);
+          }
+          bulkBuffer.add(request);
+          deleted.increment();
+          if (bulkBuffer.isFull()) {
+            log.debug("Deleting documents of {} from index [{}]: {}", name, getIndexName(), deleted.sum());
+            bulkPipeline.submit(bulkBuffer.drain());
+          }
+        });
+        if (!bulkBuffer.isEmpty()) bulkPipeline.submit(bulkBuffer.drain());
+        bulkPipeline.await();
+        if (total > 0) log.info("Deleted {} documents of {} from index [{}]", total, name, getIndexName());
+      } catch (IndexNotFoundException e) {
+        // nothing to delete
+        return;
+      } catch (RuntimeException e) {
+        log.error("Failed to delete documents of {} from index [{}] after {} documents", name, getIndexName(),
+            deleted.sum(), e);
+        invalidateQueryResults();
+        throw e;
       }
 
+      esSearchService.getIndexStateStore().delete(getName(), name);
+      state = null;
+      invalidateQueryResults();
       cleanMapping();
     }
 
     @NotNull
     IndexMetaData createIndex() {
-      // reset metadata cache
-      esMapping = null;
       IndicesAdminClient idxAdmin = esSearchService.getClient().admin().indices();
-      if (!idxAdmin.exists(new IndicesExistsRequest(getIndexName())).actionGet().isExists()) {
-        log.info("Creating index [{}]", getIndexName());
-        idxAdmin.prepareCreate(getIndexName()).setSettings(getIndexSettings()).execute().actionGet();
+      if (!idxAdmin.exists(new IndicesExistsRequest(getWriteIndexName())).actionGet().isExists()) {
+        log.info("Creating index [{}]", getWriteIndexName());
+        CreateIndexRequestBuilder create = idxAdmin.prepareCreate(getWriteIndexName()).setSettings(getIndexSettings());
+        // table generations are aliased when committed
+        if (getLayout() == IndexLayout.DATASOURCE) create.addAlias(new Alias(getName()));
+        create.execute().actionGet();
         createIndexWithMapping();
       } else {
         updateIndexWithMapping();
       }
-      // reset metadata cache
-      esMapping = null;
-      return esSearchService.getClient().admin().cluster().prepareState().setIndices(getIndexName()).execute().actionGet()
-          .getState().getMetaData().index(getIndexName());
+      esSearchService.getIndexMetadataCache().invalidate();
+      return esSearchService.getIndexMetadataCache().getIndexMetaData(getWriteIndexName());
     }
 
     private void createIndexWithMapping() {
-      log.info("Creating index mapping [{}] for {}", getIndexName(), name);
-      esSearchService.getClient().admin().indices().preparePutMapping(getIndexName()).setType(getIndexType())
+      log.info("Creating index mapping [{}] for {}", getWriteIndexName(), name);
+      esSearchService.getClient().admin().indices().preparePutMapping(getWriteIndexName()).setType(getIndexType())
           .setSource(createMapping()).execute().actionGet();
     }
 
     private void updateIndexWithMapping() {
-      String indexName = getIndexName();
-      log.info("Updating index mapping [{}] for {}", indexName, name);
-      ESMapping mapping = readMapping();
-      XContentBuilder newMapping = updateMapping(mapping);
-      if (newMapping != null) {
+      String indexName = getWriteIndexName();
+      XContentBuilder newMapping = updateMapping(readMappingForUpdate());
+      if (newMapping == null) {
+        log.debug("Index mapping [{}] is up to date for {}", indexName, name);
+      } else {
+        log.info("Updating index mapping [{}] for {}", indexName, name);
         esSearchService.getClient().admin().indices().preparePutMapping(indexName).setType(getIndexType())
             .setSource(newMapping).execute().actionGet();
       }
     }
 
+    /**
+     * Add table specific information to the index state, when the index timestamps are updated.
+     *
+     * @param fields
+     */
+    protected void updateState(Map<String, Object> fields) {
+    }
+
     /**
      * Create a full index mapping for the current table.
      *
@@ -324,9 +812,10 @@ public abstract class ESIndexManager implements IndexManager {
     protected abstract XContentBuilder createMapping();
 
     /**
-     * Update the index mapping properties for the current table.
+     * Get the index mapping properties to be added for the current table.
      *
-     * @param mapping
+     * @param mapping current mapping, must not be modified
+     * @return null if there is nothing to add
      */
     protected abstract XContentBuilder updateMapping(ESMapping mapping);
 
@@ -337,29 +826,57 @@ public abstract class ESIndexManager implements IndexManager {
 
     @Override
     public Timestamps getTimestamps() {
+      IndexState current = getState();
       return new Timestamps() {
 
-        private final ESMapping.Meta meta;
-
-        {
-          meta = readMapping().meta();
-        }
-
         @NotNull
         @Override
         public Value getLastUpdate() {
-          return DateTimeType.get().valueOf(meta.getString(name));
+          return current.getLastUpdate();
         }
 
         @NotNull
         @Override
         public Value getCreated() {
-          return DateTimeType.get().valueOf(meta.getString(name));
+          return current.getLastUpdate();
         }
 
       };
     }
 
+    /**
+     * Get the state of the searched index of the table, read again when the cluster meta data has changed or when
+     * the state is older than the meta data cache time to live.
+     *
+     * @return
+     */
+    IndexState getState() {
+      IndexMetadataCache cache = esSearchService.getIndexMetadataCache();
+      if (cache == null) return new IndexState(null, false, null);
+      MetaData metaData = cache.getMetaData();
+      IndexState current = state;
+      return current != null && current.isValid(metaData, cache.getTtl()) ? current : readState(metaData, readStoredState());
+    }
+
+    private boolean hasState(MetaData metaData, long ttl) {
+      IndexState current = state;
+      return current != null && current.isValid(metaData, ttl);
+    }
+
+    private IndexState readState(MetaData metaData, Map<String, Object> stored) {
+      IndexMetaData indexMetaData = IndexMetadataCache.getIndexMetaData(metaData, getIndexName());
+      boolean indexed = indexMetaData != null && indexMetaData.getMappings().containsKey(getIndexType());
+      Object lastUpdate = stored == null ? null : stored.get(IndexStateStore.LAST_UPDATE_FIELD);
+      if (lastUpdate == null && indexed) {
+        // timestamps were kept in the mapping meta data by the previous versions
+        ESMapping mapping = esSearchService.getIndexMetadataCache().getMapping(indexMetaData, getIndexType());
+        if (mapping != null) lastUpdate = mapping.meta().getString(name);
+      }
+      IndexState current = new IndexState(metaData, indexed, lastUpdate == null ? null : lastUpdate.toString());
+      state = current;
+      return current;
+    }
+
     @NotNull
     protected String indexName(@NotNull ValueTable table) {
       String datasourceName = table.getDatasource().getName().replace(' ', '+').replace('.', '-');
@@ -367,51 +884,55 @@ public abstract class ESIndexManager implements IndexManager {
       return datasourceName + "__" + tableName;
     }
 
+    /**
+     * Get the cached mapping of the index type, that must not be modified.
+     *
+     * @return
+     */
     @NotNull
     protected ESMapping readMapping() {
-      if (esMapping != null) return esMapping;
+      ESMapping mapping = null;
+      if (esSearchService.getIndexMetadataCache() != null)
+        mapping = esSearchService.getIndexMetadataCache().getMapping(getWriteIndexName(), getIndexType());
       try {
-        IndexMetaData indexMetaData = getIndexMetaData();
-        if (indexMetaData != null) {
-          MappingMetaData metaData = indexMetaData.mapping(getIndexType());
-          if (metaData != null) {
-            byte[] mappingSource = metaData.source().uncompressed();
-            esMapping = new ESMapping(getIndexType(), mappingSource);
-          }
-        }
-        if (esMapping == null) esMapping = new ESMapping(getIndexType());
+        return mapping == null ? new ESMapping(getIndexType()) : mapping;
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
-      return esMapping;
+    }
+
+    /**
+     * Get a copy of the latest mapping of the index type, to be modified and put back.
+     *
+     * @return
+     */
+    @NotNull
+    protected ESMapping readMappingForUpdate() {
+      return esSearchService.getIndexMetadataCache().getMappingForUpdate(getWriteIndexName(), getIndexType());
     }
 
     protected ValueTable resolveTable() {
       return MagmaEngineTableResolver.valueOf(valueTableReference).resolveTable();
     }
 
+    /**
+     * Remove the table's information kept in the mapping meta data by the previous versions.
+     */
     private void cleanMapping() {
       try {
-        ESMapping mapping = readMapping();
-        if (mapping.meta().hasString(name)) {
-          mapping.meta().deleteString(name);
-          esSearchService.getClient().admin().indices().preparePutMapping(getIndexName()).setType(getIndexType())
+        ESMapping mapping = readMappingForUpdate();
+        String prefix = name + ":";
+        if (mapping.meta().hasString(name) || mapping.meta().hasStrings(prefix)) {
+          mapping.meta().deleteString(name).deleteStrings(prefix);
+          esSearchService.getClient().admin().indices().preparePutMapping(getWriteIndexName()).setType(getIndexType())
               .setSource(mapping.toXContent()).execute().actionGet();
+          esSearchService.getIndexMetadataCache().invalidate();
         }
-        // reset metadata cache
-        esMapping = null;
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
     }
 
-    @Nullable
-    private IndexMetaData getIndexMetaData() {
-      if (esSearchService.getClient() == null) return null;
-      return esSearchService.getClient().admin().cluster().prepareState().setIndices(getIndexName()).execute()
-          .actionGet().getState().getMetaData().index(getIndexName());
-    }
-
     @NotNull
     @Override
     public Calendar now() {
@@ -433,4 +954,31 @@ public abstract class ESIndexManager implements IndexManager {
 
   }
 
+  /**
+   * Index state of a table, as found in a version of the cluster meta data and in the index state store.
+   */
+  private static class IndexState {
+
+    private final MetaData metaData;
+
+    private final boolean indexed;
+
+    private final String lastUpdate;
+
+    private final long readAt = System.currentTimeMillis();
+
+    private IndexState(MetaData metaData, boolean indexed, String lastUpdate) {
+      this.metaData = metaData;
+      this.indexed = indexed;
+      this.lastUpdate = lastUpdate;
+    }
+
+    private boolean isValid(MetaData current, long ttl) {
+      return metaData == current && System.currentTimeMillis() - readAt <= ttl;
+    }
+
+    private Value getLastUpdate() {
+      return DateTimeType.get().valueOf(lastUpdate);
+    }
+  }
 }
@@ -16,6 +16,7 @@ import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.elasticsearch.common.xcontent.json.JsonXContentParser;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -56,11 +57,11 @@ public class ESMapping {
   public class Meta {
 
     public boolean hasString(String name) {
-      return meta().containsKey(name);
+      return readMeta().containsKey(name);
     }
 
     public String getString(String name) {
-      return (String) meta().get(name);
+      return (String) readMeta().get(name);
     }
 
     public Meta setString(String name, String value) {
@@ -73,16 +74,39 @@ public class ESMapping {
       return this;
     }
 
+    /**
+     * Get a read-only view of the meta data.
+     *
+     * @return
+     */
+    public Map<String, Object> asMap() {
+      return Collections.unmodifiableMap(readMeta());
+    }
+
+    public boolean hasStrings(String namePrefix) {
+      return readMeta().keySet().stream().anyMatch(k -> k.startsWith(namePrefix));
+    }
+
+    public Meta deleteStrings(String namePrefix) {
+      meta().keySet().removeIf(k -> k.startsWith(namePrefix));
+      return this;
+    }
+
     private Map<String, Object> meta() {
       return newIfAbsent(type(), "_meta");
     }
+
+    // does not modify the mapping, which can be shared when only read
+    private Map<String, Object> readMeta() {
+      return getOrEmpty(getOrEmpty(mapping, name), "_meta");
+    }
   }
 
   @SuppressWarnings("ParameterHidesMemberVariable, unchecked")
   public class Properties {
 
     public boolean hasProperty(String name) {
-      return properties().containsKey(name);
+      return getOrEmpty(getOrEmpty(mapping, ESMapping.this.name), "properties").containsKey(name);
     }
 
     public void removeProperty(String name) {
@@ -109,6 +133,12 @@ public class ESMapping {
     }
   }
 
+  @SuppressWarnings("unchecked")
+  private Map<String, Object> getOrEmpty(Map<String, Object> map, String key) {
+    Map<String, Object> inner = (Map<String, Object>) map.get(key);
+    return inner == null ? Collections.emptyMap() : inner;
+  }
+
   @SuppressWarnings("unchecked")
   private Map<String, Object> newIfAbsent(Map<String, Object> map, String key) {
     Map<String, Object> inner = (Map<String, Object>) map.get(key);
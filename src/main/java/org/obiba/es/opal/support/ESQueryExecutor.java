@@ -10,17 +10,27 @@
 package org.obiba.es.opal.support;
 
 import com.google.common.collect.Iterators;
-import org.codehaus.jettison.json.JSONArray;
-import org.codehaus.jettison.json.JSONException;
-import org.codehaus.jettison.json.JSONObject;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchHit;
+import org.elasticsearch.search.internal.InternalSearchHits;
 import org.elasticsearch.search.sort.SortOrder;
 import org.obiba.es.opal.ESSearchService;
 import org.obiba.opal.spi.search.QuerySettings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
 public class ESQueryExecutor {
 
   private static final Logger log = LoggerFactory.getLogger(ESQueryExecutor.class);
@@ -29,6 +39,12 @@ public class ESQueryExecutor {
 
   private String searchPath;
 
+  private List<String> indices;
+
+  private List<String> routings;
+
+  private boolean distinct;
+
   public ESQueryExecutor(ESSearchService esSearchService) {
     this.esSearchService = esSearchService;
   }
@@ -38,47 +54,153 @@ public class ESQueryExecutor {
     return this;
   }
 
-  public JSONObject execute(QuerySettings querySettings) throws JSONException {
-    // TODO make a SearchRequestBuilder instead of a JSON object
-    return execute(JsonSearchQueryBuilder.newSearchQuery(querySettings).build());
+  /**
+   * Search these indices instead of the one of the search path.
+   *
+   * @param indices
+   * @return
+   */
+  public ESQueryExecutor setIndices(List<String> indices) {
+    this.indices = indices;
+    return this;
   }
 
-  private JSONObject execute(JSONObject jsonRequest) throws JSONException {
-    if (log.isTraceEnabled()) log.trace("Request: " + searchPath + " => " + jsonRequest.toString(2));
-    String[] parts = searchPath.split("/");
+  /**
+   * Search only the shards of these routing values.
+   *
+   * @param routings
+   * @return
+   */
+  public ESQueryExecutor setRoutings(List<String> routings) {
+    this.routings = routings;
+    return this;
+  }
 
-    SearchRequestBuilder request = esSearchService.getClient().prepareSearch()
-        .setIndices(parts[0])
-        .setQuery(jsonRequest.getString("query"))
-        .setFrom(jsonRequest.getInt("from"))
-        .setSize(jsonRequest.getInt("size"));
-
-    if (jsonRequest.has("sort")) {
-      JSONArray sort = jsonRequest.getJSONArray("sort");
-      try {
-        for (int i=0; i<sort.length(); i++) {
-          JSONObject sortObject = sort.getJSONObject(i);
-          String key = sortObject.keys().next().toString();
-          String order = sortObject.getJSONObject(key).getString("order");
-          request.addSort(key, SortOrder.valueOf(order.toUpperCase()));
-        }
-      } catch (Exception e) {
-        log.warn("Unable to interpret the sort object: " + sort.toString());
+  /**
+   * The searched documents may have several copies, in different indices or shards, that are to be merged.
+   *
+   * @param distinct
+   * @return
+   */
+  public ESQueryExecutor setDistinct(boolean distinct) {
+    this.distinct = distinct;
+    return this;
+  }
+
+  public boolean isDistinct() {
+    return distinct;
+  }
+
+  /**
+   * Search the indices and types of the search path.
+   *
+   * @param querySettings
+   * @return
+   */
+  public SearchResponse search(QuerySettings querySettings) {
+    SearchRequestBuilder request = prepareSearch(querySettings);
+    log.debug("request /{} : {}", searchPath, request);
+    return request.execute().actionGet();
+  }
+
+  /**
+   * Search the indices and types of the search path without blocking the calling thread.
+   *
+   * @param querySettings
+   * @return the response, completed by an Elasticsearch thread
+   */
+  public CompletableFuture<SearchResponse> searchAsync(QuerySettings querySettings) {
+    SearchRequestBuilder request = prepareSearch(querySettings);
+    log.debug("request /{} : {}", searchPath, request);
+    return executeAsync(request);
+  }
+
+  /**
+   * Execute a search request without blocking the calling thread.
+   *
+   * @param request
+   * @return the response, completed by an Elasticsearch thread
+   */
+  public static CompletableFuture<SearchResponse> executeAsync(SearchRequestBuilder request) {
+    CompletableFuture<SearchResponse> future = new CompletableFuture<>();
+    request.execute(new ActionListener<SearchResponse>() {
+      @Override
+      public void onResponse(SearchResponse response) {
+        future.complete(response);
       }
+
+      @Override
+      public void onFailure(Throwable e) {
+        future.completeExceptionally(e);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Walk through the hits of the search in bounded pages, the query settings size being the maximum number of hits
+   * consumed after skipping the ones before the query settings start. Scrolling stops when the thread is interrupted.
+   *
+   * @param querySettings
+   * @param pageSize number of hits per shard and per page
+   * @param onTotal notified of the total number of hits
+   * @param consumer
+   */
+  public void scroll(QuerySettings querySettings, int pageSize, LongConsumer onTotal, Consumer<SearchHit> consumer) {
+    SearchRequestBuilder request = prepareSearch(querySettings).setFrom(0);
+    // index order is the cheapest one to walk through
+    if (!querySettings.hasSort()) request.addSort("_doc", SortOrder.ASC);
+    log.debug("scroll /{} : {}", searchPath, request);
+    long from = querySettings.getFrom();
+    long to = from + querySettings.getSize();
+    long[] position = { 0 };
+    try {
+      ScrollHelper.forEachHit(esSearchService.getClient(), request, pageSize, onTotal, hit -> {
+        if (Thread.currentThread().isInterrupted()) {
+          log.debug("scroll /{} interrupted after {} hits", searchPath, position[0]);
+          return false;
+        }
+        if (position[0] >= to) return false;
+        if (position[0]++ >= from) consumer.accept(hit);
+        return position[0] < to;
+      });
+    } catch (IllegalStateException e) {
+      // interrupted while waiting for a page
+      if (!(e.getCause() instanceof InterruptedException)) throw e;
+      log.debug("scroll /{} interrupted after {} hits", searchPath, position[0]);
     }
-    if (jsonRequest.has("filter")) {
-      request.setPostFilter(jsonRequest.getString("filter"));
-    }
-    if (jsonRequest.has("_source")) {
-      JSONArray jsonInclude = jsonRequest.getJSONArray("_source");
-      String[] include = new String[jsonInclude.length()];
-      for (int i = 0; i < jsonInclude.length(); i++) include[i] = jsonInclude.getString(i);
-      request.setFetchSource(include, new String[0]);
-    }
+  }
+
+  /**
+   * Search documents that may have several copies, keeping the first hit of each document id. All the hits are walked
+   * through with a scroll, so that the total is the number of distinct documents: the ids of the documents are held
+   * in memory meanwhile.
+   *
+   * @param querySettings
+   * @param pageSize number of hits per shard and per page
+   * @return the distinct hits from the query settings start, up to the query settings size
+   */
+  public SearchHits searchDistinct(QuerySettings querySettings, int pageSize) {
+    SearchRequestBuilder request = prepareSearch(querySettings).setFrom(0);
+    if (!querySettings.hasSort()) request.addSort("_doc", SortOrder.ASC);
+    log.debug("distinct scroll /{} : {}", searchPath, request);
+    long from = querySettings.getFrom();
+    long to = from + querySettings.getSize();
+    Set<String> ids = Sets.newHashSet();
+    List<InternalSearchHit> hits = Lists.newArrayList();
+    ScrollHelper.forEachHit(esSearchService.getClient(), request, pageSize, total -> {}, hit -> {
+      if (ids.add(hit.getId()) && ids.size() > from && ids.size() <= to) hits.add((InternalSearchHit) hit);
+      return true;
+    });
+    return new InternalSearchHits(hits.toArray(new InternalSearchHit[hits.size()]), ids.size(), 0);
+  }
+
+  private SearchRequestBuilder prepareSearch(QuerySettings querySettings) {
+    String[] parts = searchPath.split("/");
+    SearchRequestBuilder request = esSearchService.getClient().prepareSearch()
+        .setIndices(indices == null || indices.isEmpty() ? new String[] { parts[0] } : indices.toArray(new String[0]));
     if (parts.length > 1) request.setTypes(parts[1]);
-    log.debug("request /{} : {}", searchPath, request.toString());
-    SearchResponse response = request.execute().actionGet();
-    JSONObject jsonResponse = new JSONObject(response.toString());
-    return jsonResponse;
+    if (routings != null && !routings.isEmpty()) request.setRouting(routings.toArray(new String[0]));
+    return SearchQueryBuilder.newSearchQuery(querySettings).build(request);
   }
-}
+}
\ No newline at end of file
@@ -9,6 +9,10 @@
  */
 package org.obiba.es.opal.support;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
@@ -23,6 +27,8 @@ import org.obiba.opal.web.model.Search;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Joiner;
+
 /**
  * This class is responsible for executing an elastic search. The input and output of this class are DTO format.
  */
@@ -51,13 +57,39 @@ public class ESSearchQueryExecutor implements SearchQueryExecutor {
    */
   @Override
   public Search.QueryResultDto execute(Search.QueryTermsDto dtoQueries) throws SearchException {
+    return convert(prepareSearch(dtoQueries).execute().actionGet());
+  }
+
+  /**
+   * Executes an elastic search query without blocking the calling thread.
+   *
+   * @param dtoQueries
+   * @param executor executor of the response conversion
+   * @return
+   */
+  public CompletableFuture<Search.QueryResultDto> executeAsync(Search.QueryTermsDto dtoQueries, Executor executor) {
     try {
-      JSONObject jsonRequest = convert(dtoQueries);
+      return ESQueryExecutor.executeAsync(prepareSearch(dtoQueries)).thenApplyAsync(this::convert, executor);
+    } catch (SearchException e) {
+      CompletableFuture<Search.QueryResultDto> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  private SearchRequestBuilder prepareSearch(Search.QueryTermsDto dtoQueries) throws SearchException {
+    try {
+      QueryTermConverter converter = new QueryTermConverter(valueTableIndexManager, termsFacetSizeLimit);
+      JSONObject jsonRequest = converter.convert(dtoQueries);
       ValueTableValuesIndex valueTableValuesIndex = valueTableIndexManager.getValueTableValuesIndex();
+      // only the indices of the tables involved in the query are searched
+      String[] indices = converter.getIndexNames().toArray(new String[0]);
       SearchRequestBuilder request = esProvider.getClient().prepareSearch()
-          .setIndices(valueTableValuesIndex.getIndexName())
+          .setIndices(indices)
           .setTypes(valueTableValuesIndex.getIndexType())
           .setQuery(jsonRequest.getString("query"));
+      List<String> routings = converter.getRoutings();
+      if (routings != null) request.setRouting(routings.toArray(new String[0]));
       if (jsonRequest.has("aggregations")) {
         request.setAggregations(jsonRequest.getJSONObject("aggregations").toString().getBytes());
       }
@@ -73,17 +105,19 @@ public class ESSearchQueryExecutor implements SearchQueryExecutor {
         for (int i = 0; i < jsonInclude.length(); i++) include[i] = jsonInclude.getString(i);
         request.setFetchSource(include, new String[0]);
       }
-      log.debug("request /{}/{} : {}", valueTableValuesIndex.getIndexName(), valueTableValuesIndex.getIndexType(), request.toString());
-      SearchResponse response = request.execute().actionGet();
-      log.debug("response /{}/{} : {}", valueTableValuesIndex.getIndexName(), valueTableValuesIndex.getIndexType(), response.toString());
-      JSONObject jsonContent = new JSONObject(response.toString());
-      QueryResultConverter converter = new QueryResultConverter();
-      return converter.convert(jsonContent);
+      if (log.isDebugEnabled())
+        log.debug("request /{}/{} : {}", Joiner.on(',').join(indices), valueTableValuesIndex.getIndexType(), request);
+      return request;
     } catch (JSONException e) {
       throw new SearchException(e.getMessage(), e);
     }
   }
 
+  private Search.QueryResultDto convert(SearchResponse response) {
+    log.debug("response : {}", response);
+    return new QueryResultConverter().convert(response);
+  }
+
   /**
    * Executes a single elastic search query.
    *
@@ -97,10 +131,4 @@ public class ESSearchQueryExecutor implements SearchQueryExecutor {
     Search.QueryTermsDto dtoQueries = Search.QueryTermsDto.newBuilder().addQueries(dtoQuery).build();
     return execute(dtoQueries);
   }
-
-  private JSONObject convert(Search.QueryTermsDto dtoQueries) throws JSONException {
-    // TODO conver to a Search Request instead of a JSON object
-    QueryTermConverter converter = new QueryTermConverter(valueTableIndexManager, termsFacetSizeLimit);
-    return converter.convert(dtoQueries);
-  }
 }
\ No newline at end of file
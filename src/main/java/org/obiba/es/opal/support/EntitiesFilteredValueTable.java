@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.List;
+
+import javax.validation.constraints.NotNull;
+
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.VariableEntity;
+import org.obiba.magma.support.AbstractValueTableWrapper;
+
+/**
+ * Exposes a subset of the entities of a table, so that only their value sets get read.
+ */
+public class EntitiesFilteredValueTable extends AbstractValueTableWrapper {
+
+  private final ValueTable wrappedTable;
+
+  private final List<VariableEntity> entities;
+
+  public EntitiesFilteredValueTable(@NotNull ValueTable wrappedTable, @NotNull List<VariableEntity> entities) {
+    this.wrappedTable = wrappedTable;
+    this.entities = entities;
+  }
+
+  @NotNull
+  @Override
+  public ValueTable getWrappedValueTable() {
+    return wrappedTable;
+  }
+
+  @Override
+  public List<VariableEntity> getVariableEntities() {
+    return entities;
+  }
+
+  @Override
+  public int getVariableEntityCount() {
+    return entities.size();
+  }
+}
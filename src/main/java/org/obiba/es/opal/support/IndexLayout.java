@@ -0,0 +1,36 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+/**
+ * How the documents of the tables are distributed in physical indices. In the datasource and table layouts, the
+ * index manager name is an alias to all the physical indices.
+ */
+public enum IndexLayout {
+
+  /**
+   * One index for all the tables.
+   */
+  SHARED,
+
+  /**
+   * One index per datasource, in which the tables documents are replaced on full synchronization.
+   */
+  DATASOURCE,
+
+  /**
+   * One index per table, rebuilt in a new generation on full synchronization.
+   */
+  TABLE;
+
+  public static IndexLayout valueOfIgnoreCase(String layout) {
+    return valueOf(layout.trim().toUpperCase());
+  }
+}
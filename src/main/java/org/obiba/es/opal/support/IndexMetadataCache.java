@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.AliasOrIndex;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Cluster meta data and parsed index mappings, shared by all the index managers. The meta data is kept as long as the
+ * cluster state version does not change, the parsed mappings as long as the version of their index does not change.
+ * In node mode the cache is notified of the cluster state changes, in transport mode the cluster state version is
+ * checked once the time to live of the cached meta data has expired.
+ */
+public class IndexMetadataCache implements ClusterStateListener {
+
+  private static final Logger log = LoggerFactory.getLogger(IndexMetadataCache.class);
+
+  public static final long DEFAULT_TTL = 1000;
+
+  public static final long DEFAULT_MAX_MAPPINGS_SIZE = 64 * 1024 * 1024;
+
+  private final Client client;
+
+  private final long ttl;
+
+  private volatile boolean listening = false;
+
+  private volatile Entry entry;
+
+  // parsed mappings by index, index version and type, so that they survive the meta data changes of the other
+  // indices: they can be large, so they are bounded by their source size and can be reclaimed by the garbage collector
+  private final Cache<String, ParsedMapping> mappings;
+
+  /**
+   * @param client
+   * @param ttl time in milliseconds during which the cached meta data is used without checking the cluster state
+   * version, when not listening to the cluster state changes
+   * @param maxMappingsSize maximum size in bytes of the sources of the parsed mappings kept in cache
+   */
+  public IndexMetadataCache(Client client, long ttl, long maxMappingsSize) {
+    this.client = client;
+    this.ttl = ttl;
+    mappings = CacheBuilder.newBuilder() //
+        .maximumWeight(maxMappingsSize) //
+        .weigher((String key, ParsedMapping value) -> value.size) //
+        .softValues() //
+        .recordStats() //
+        .build();
+  }
+
+  /**
+   * Get the time in milliseconds during which the cached meta data is used without checking the cluster state version.
+   *
+   * @return
+   */
+  public long getTtl() {
+    return ttl;
+  }
+
+  /**
+   * Get the cluster meta data, from the cache if it is up to date.
+   *
+   * @return
+   */
+  public MetaData getMetaData() {
+    Entry current = entry;
+    if (current != null && (listening || !current.isExpired())) return current.metaData;
+    synchronized (this) {
+      current = entry;
+      if (current != null && (listening || !current.isExpired())) return current.metaData;
+      if (current != null) {
+        long version = client.admin().cluster().prepareState().clear().execute().actionGet().getState().getVersion();
+        if (version == current.version) {
+          entry = new Entry(current.metaData, version);
+          return current.metaData;
+        }
+      }
+      ClusterState state = client.admin().cluster().prepareState().clear().setMetaData(true).execute().actionGet()
+          .getState();
+      update(state);
+      return state.getMetaData();
+    }
+  }
+
+  /**
+   * Get the meta data of an index or of the single index an alias points to.
+   *
+   * @param indexOrAlias
+   * @return null if not found
+   */
+  @Nullable
+  public IndexMetaData getIndexMetaData(String indexOrAlias) {
+    return getIndexMetaData(getMetaData(), indexOrAlias);
+  }
+
+  /**
+   * Get the meta data of an index or of the single index an alias points to.
+   *
+   * @param metaData
+   * @param indexOrAlias
+   * @return null if not found
+   */
+  @Nullable
+  public static IndexMetaData getIndexMetaData(MetaData metaData, String indexOrAlias) {
+    AliasOrIndex aliasOrIndex = metaData.getAliasAndIndexLookup().get(indexOrAlias);
+    if (aliasOrIndex == null || aliasOrIndex.getIndices().size() != 1) return null;
+    return aliasOrIndex.getIndices().get(0);
+  }
+
+  /**
+   * Get the parsed mapping of an index type. The returned mapping is shared and must not be modified.
+   *
+   * @param indexOrAlias
+   * @param type
+   * @return null if the index or the type does not exist
+   */
+  @Nullable
+  public ESMapping getMapping(String indexOrAlias, String type) {
+    IndexMetaData indexMetaData = getIndexMetaData(indexOrAlias);
+    return indexMetaData == null ? null : getMapping(indexMetaData, type);
+  }
+
+  /**
+   * Get the parsed mapping of an index type. The returned mapping is shared and must not be modified.
+   *
+   * @param indexMetaData
+   * @param type
+   * @return null if the type does not exist
+   */
+  @Nullable
+  public ESMapping getMapping(IndexMetaData indexMetaData, String type) {
+    MappingMetaData mappingMetaData = indexMetaData.mapping(type);
+    if (mappingMetaData == null) return null;
+    // the index meta data version changes with its mappings, the uuid tells a re-created index apart
+    try {
+      return mappings.get(indexMetaData.getIndexUUID() + "/" + indexMetaData.getVersion() + "/" + type,
+          () -> new ParsedMapping(type, mappingMetaData.source().uncompressed())).mapping;
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Get the statistics of the parsed mappings cache.
+   *
+   * @return
+   */
+  public CacheStats getMappingsStats() {
+    return mappings.stats();
+  }
+
+  /**
+   * Get the size in bytes of the sources of the parsed mappings currently in cache.
+   *
+   * @return
+   */
+  public long getMappingsRetainedSize() {
+    long size = 0;
+    for (ParsedMapping parsedMapping : mappings.asMap().values()) size += parsedMapping.size;
+    return size;
+  }
+
+  /**
+   * Get a copy of the mapping of an index type that can be modified and put back, read from the latest cluster state.
+   *
+   * @param indexOrAlias
+   * @param type
+   * @return
+   */
+  public ESMapping getMappingForUpdate(String indexOrAlias, String type) {
+    invalidate();
+    IndexMetaData indexMetaData = getIndexMetaData(indexOrAlias);
+    MappingMetaData mappingMetaData = indexMetaData == null ? null : indexMetaData.mapping(type);
+    try {
+      return mappingMetaData == null ? new ESMapping(type) : new ESMapping(type, mappingMetaData.source().uncompressed());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Forget the cached meta data, to be called after modifying the indices, their aliases or mappings.
+   */
+  public synchronized void invalidate() {
+    entry = null;
+  }
+
+  /**
+   * Whether the cache is notified of the cluster state changes, in which case the cached meta data does not expire.
+   *
+   * @param listening
+   */
+  public void setListening(boolean listening) {
+    this.listening = listening;
+    if (!listening) invalidate();
+  }
+
+  @Override
+  public void clusterChanged(ClusterChangedEvent event) {
+    if (!event.metaDataChanged()) return;
+    log.trace("Cluster meta data changed (version {})", event.state().getVersion());
+    synchronized (this) {
+      update(event.state());
+    }
+  }
+
+  private void update(ClusterState state) {
+    entry = new Entry(state.getMetaData(), state.getVersion());
+  }
+
+  private static class ParsedMapping {
+
+    private final ESMapping mapping;
+
+    private final int size;
+
+    private ParsedMapping(String type, byte[] source) throws IOException {
+      mapping = new ESMapping(type, source);
+      size = source.length;
+    }
+  }
+
+  private class Entry {
+
+    private final MetaData metaData;
+
+    private final long version;
+
+    private final long checkedAt = System.currentTimeMillis();
+
+    private Entry(MetaData metaData, long version) {
+      this.metaData = metaData;
+      this.version = version;
+    }
+
+    private boolean isExpired() {
+      return System.currentTimeMillis() - checkedAt > ttl;
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.indices.IndexAlreadyExistsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Index state of the tables (last update, number of documents, synchronization status etc.), kept in one small
+ * document per table and index manager. Updating the state of a table is a document write and not a mapping update,
+ * which would have to be published to all the nodes of the cluster with the cluster state.
+ */
+public class IndexStateStore {
+
+  private static final Logger log = LoggerFactory.getLogger(IndexStateStore.class);
+
+  public static final String TYPE = "TableIndex";
+
+  public static final String MANAGER_FIELD = "manager";
+
+  public static final String TABLE_FIELD = "table";
+
+  public static final String LAST_UPDATE_FIELD = "lastUpdate";
+
+  public static final String DOCUMENTS_FIELD = "documents";
+
+  public static final String GENERATION_FIELD = "generation";
+
+  public static final String STATUS_FIELD = "status";
+
+  public static final String STATUS_SYNCING = "syncing";
+
+  public static final String STATUS_INDEXED = "indexed";
+
+  private final Client client;
+
+  private final String indexName;
+
+  private final IndexMetadataCache indexMetadataCache;
+
+  /**
+   * @param client
+   * @param indexName name of the index holding the state documents
+   * @param indexMetadataCache used to check whether the index exists
+   */
+  public IndexStateStore(Client client, String indexName, IndexMetadataCache indexMetadataCache) {
+    this.client = client;
+    this.indexName = indexName;
+    this.indexMetadataCache = indexMetadataCache;
+  }
+
+  public String getIndexName() {
+    return indexName;
+  }
+
+  /**
+   * Get the state of a table.
+   *
+   * @param manager index manager name
+   * @param table table name
+   * @return empty if there is no state for the table
+   */
+  public Map<String, Object> get(String manager, String table) {
+    if (!exists()) return Collections.emptyMap();
+    try {
+      GetResponse response = client.prepareGet(indexName, TYPE, getDocumentId(manager, table)).execute().actionGet();
+      return response.isExists() ? response.getSourceAsMap() : Collections.emptyMap();
+    } catch (IndexNotFoundException e) {
+      return Collections.emptyMap();
+    }
+  }
+
+  /**
+   * Get the state of several tables in one request.
+   *
+   * @param manager index manager name
+   * @param tables table names
+   * @return state by table name, empty if there is no state for the table
+   */
+  public Map<String, Map<String, Object>> getAll(String manager, Collection<String> tables) {
+    Map<String, Map<String, Object>> states = Maps.newHashMap();
+    for (String table : tables) states.put(table, Collections.emptyMap());
+    if (tables.isEmpty() || !exists()) return states;
+    MultiGetRequestBuilder request = client.prepareMultiGet();
+    for (String table : tables) request.add(indexName, TYPE, getDocumentId(manager, table));
+    for (MultiGetItemResponse item : request.execute().actionGet()) {
+      if (item.isFailed() || !item.getResponse().isExists()) continue;
+      Map<String, Object> source = item.getResponse().getSourceAsMap();
+      states.put((String) source.get(TABLE_FIELD), source);
+    }
+    return states;
+  }
+
+  /**
+   * Merge some fields in the state of a table, a null value clearing the field.
+   *
+   * @param manager index manager name
+   * @param table table name
+   * @param fields
+   */
+  public void update(String manager, String table, Map<String, Object> fields) {
+    ensureIndex();
+    Map<String, Object> doc = Maps.newHashMap(fields);
+    doc.put(MANAGER_FIELD, manager);
+    doc.put(TABLE_FIELD, table);
+    client.prepareUpdate(indexName, TYPE, getDocumentId(manager, table)).setDoc(doc).setDocAsUpsert(true)
+        .setRetryOnConflict(3).execute().actionGet();
+  }
+
+  /**
+   * Forget the state of a table.
+   *
+   * @param manager index manager name
+   * @param table table name
+   */
+  public void delete(String manager, String table) {
+    if (!exists()) return;
+    try {
+      client.prepareDelete(indexName, TYPE, getDocumentId(manager, table)).execute().actionGet();
+    } catch (IndexNotFoundException e) {
+      // nothing to delete
+    }
+  }
+
+  /**
+   * Forget the state of all the tables of an index manager.
+   *
+   * @param manager index manager name
+   */
+  public void deleteAll(String manager) {
+    if (!exists()) return;
+    try {
+      client.admin().indices().prepareRefresh(indexName).execute().actionGet();
+      SearchRequestBuilder search = client.prepareSearch(indexName).setTypes(TYPE)
+          .setQuery(QueryBuilders.termQuery(MANAGER_FIELD, manager)).setNoFields();
+      BulkBuffer bulkBuffer = new BulkBuffer(client, BulkPolicy.defaultPolicy());
+      ScrollHelper.forEachHit(client, search, hit -> {
+        bulkBuffer.add(client.prepareDelete(indexName, TYPE, hit.getId()));
+        if (bulkBuffer.isFull()) bulkBuffer.drain().execute().actionGet();
+      });
+      if (!bulkBuffer.isEmpty()) bulkBuffer.drain().execute().actionGet();
+    } catch (IndexNotFoundException e) {
+      // nothing to delete
+    }
+  }
+
+  private String getDocumentId(String manager, String table) {
+    return manager + "/" + table;
+  }
+
+  private boolean exists() {
+    return indexMetadataCache.getIndexMetaData(indexName) != null;
+  }
+
+  private void ensureIndex() {
+    if (exists()) return;
+    try {
+      log.info("Creating index [{}]", indexName);
+      client.admin().indices().prepareCreate(indexName) //
+          .setSettings(Settings.settingsBuilder().put("number_of_shards", 1)) //
+          .addMapping(TYPE, createMapping()) //
+          .execute().actionGet();
+    } catch (IndexAlreadyExistsException e) {
+      // created concurrently
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    indexMetadataCache.invalidate();
+  }
+
+  private XContentBuilder createMapping() throws IOException {
+    return XContentFactory.jsonBuilder().startObject().startObject(TYPE) //
+        .startArray("dynamic_templates") //
+        .startObject().startObject("strings") //
+        .field("match_mapping_type", "string") //
+        .startObject("mapping").field("type", "string").field("index", "not_analyzed").endObject() //
+        .endObject().endObject() //
+        .endArray() //
+        .endObject().endObject();
+  }
+}
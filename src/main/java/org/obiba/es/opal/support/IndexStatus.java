@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import org.obiba.magma.Value;
+
+/**
+ * Index status of a table.
+ */
+public class IndexStatus {
+
+  private final boolean indexed;
+
+  private final Value lastUpdate;
+
+  private final boolean upToDate;
+
+  public IndexStatus(boolean indexed, Value lastUpdate, boolean upToDate) {
+    this.indexed = indexed;
+    this.lastUpdate = lastUpdate;
+    this.upToDate = upToDate;
+  }
+
+  /**
+   * Whether the table has an index mapping.
+   *
+   * @return
+   */
+  public boolean isIndexed() {
+    return indexed;
+  }
+
+  /**
+   * Date of the last completed synchronization, null value if none.
+   *
+   * @return
+   */
+  public Value getLastUpdate() {
+    return lastUpdate;
+  }
+
+  public boolean isUpToDate() {
+    return upToDate;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * Shares the cluster between the table synchronizations: a limited number of them run at the same time, the waiting
+ * ones being admitted by priority, and the documents they send are throttled by a global throughput budget. A
+ * synchronization that has waited longer than the maximum wait is admitted before the other ones, so that a large table
+ * is not delayed forever by the smaller ones.
+ */
+public class IndexSyncCoordinator {
+
+  private static final Logger log = LoggerFactory.getLogger(IndexSyncCoordinator.class);
+
+  public static final int DEFAULT_CONCURRENT_SYNCS = 2;
+
+  public static final long DEFAULT_MAX_WAIT = 30 * 60 * 1000;
+
+  private static final long WAIT_TIMEOUT = 500;
+
+  private final int concurrentSyncs;
+
+  private final RateLimiter docsLimiter;
+
+  private final RateLimiter bytesLimiter;
+
+  private final long maxWait;
+
+  private final List<Ticket> waiting = Lists.newArrayList();
+
+  private int running = 0;
+
+  private long sequence = 0;
+
+  /**
+   * @param concurrentSyncs maximum number of synchronizations running at the same time, no limit if not positive
+   * @param docsPerSecond maximum number of documents sent per second, no limit if not positive
+   * @param bytesPerSecond maximum number of bytes sent per second, no limit if not positive
+   * @param maxWait time in milliseconds after which a waiting synchronization comes first, no limit if not positive
+   */
+  public IndexSyncCoordinator(int concurrentSyncs, double docsPerSecond, double bytesPerSecond, long maxWait) {
+    this.concurrentSyncs = concurrentSyncs;
+    this.maxWait = maxWait;
+    docsLimiter = docsPerSecond > 0 ? RateLimiter.create(docsPerSecond) : null;
+    bytesLimiter = bytesPerSecond > 0 ? RateLimiter.create(bytesPerSecond) : null;
+  }
+
+  /**
+   * Wait for the synchronization of a table to be admitted: the synchronizations with the highest priority and then
+   * the smallest ones come first, unless some have waited longer than the maximum wait: these come first, in the order
+   * they arrived.
+   *
+   * @param reference table reference
+   * @param priority explicit priority, the higher the sooner
+   * @param size number of value sets to be indexed
+   * @param cancelled whether the synchronization was cancelled while waiting
+   * @return null if cancelled, otherwise the ticket to be released when the synchronization completes
+   */
+  @Nullable
+  public synchronized Ticket admit(String reference, int priority, long size, BooleanSupplier cancelled) {
+    Ticket ticket = new Ticket(reference, priority, size, sequence++, System.currentTimeMillis());
+    waiting.add(ticket);
+    try {
+      while (next() != ticket || (concurrentSyncs > 0 && running >= concurrentSyncs)) {
+        if (cancelled.getAsBoolean()) return null;
+        log.debug("Synchronization of {} is waiting ({} running, {} waiting)", reference, running, waiting.size());
+        wait(WAIT_TIMEOUT);
+      }
+      waiting.remove(ticket);
+      running++;
+      ticket.admitted = true;
+      return ticket;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      if (!ticket.admitted) waiting.remove(ticket);
+      // the next waiting one may be admitted
+      notifyAll();
+    }
+  }
+
+  /**
+   * Get the number of synchronizations waiting to be admitted.
+   *
+   * @return
+   */
+  public synchronized int getWaiting() {
+    return waiting.size();
+  }
+
+  public synchronized void release(Ticket ticket) {
+    if (!ticket.admitted) return;
+    ticket.admitted = false;
+    running--;
+    notifyAll();
+  }
+
+  /**
+   * Wait until the documents fit in the throughput budget.
+   *
+   * @param docs number of documents about to be sent
+   * @param bytes size of the documents
+   */
+  public void throttle(int docs, long bytes) {
+    if (docsLimiter != null && docs > 0) docsLimiter.acquire(docs);
+    if (bytesLimiter != null && bytes > 0) bytesLimiter.acquire((int) Math.min(bytes, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Get the next waiting synchronization to be admitted. The order depends on the time spent waiting, so it is
+   * evaluated each time instead of being kept in a priority queue.
+   *
+   * @return
+   */
+  private Ticket next() {
+    long now = System.currentTimeMillis();
+    Comparator<Ticket> comparator = (t1, t2) -> t1.compareTo(t2, now, maxWait);
+    return waiting.stream().min(comparator).orElse(null);
+  }
+
+  public static class Ticket {
+
+    private final String reference;
+
+    private final int priority;
+
+    private final long size;
+
+    private final long order;
+
+    private final long since;
+
+    private boolean admitted = false;
+
+    private Ticket(String reference, int priority, long size, long order, long since) {
+      this.reference = reference;
+      this.priority = priority;
+      this.size = size;
+      this.order = order;
+      this.since = since;
+    }
+
+    public String getReference() {
+      return reference;
+    }
+
+    private int compareTo(Ticket other, long now, long maxWait) {
+      if (maxWait > 0) {
+        boolean overdue = now - since >= maxWait;
+        boolean otherOverdue = now - other.since >= maxWait;
+        if (overdue != otherOverdue) return overdue ? -1 : 1;
+        if (overdue) return Long.compare(order, other.order);
+      }
+      int cmp = Integer.compare(other.priority, priority);
+      if (cmp == 0) cmp = Long.compare(size, other.size);
+      return cmp == 0 ? Long.compare(order, other.order) : cmp;
+    }
+  }
+}
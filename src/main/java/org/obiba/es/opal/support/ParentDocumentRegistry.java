@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nullable;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.obiba.es.opal.ESSearchService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of the entity documents that are the parents of the value set documents, so that an entity shared by
+ * several tables gets indexed only once. The identifiers of an entity type are loaded from the index the first time
+ * they are needed, the ones indexed since then are added by the synchronizations that succeed.
+ */
+public class ParentDocumentRegistry {
+
+  private static final Logger log = LoggerFactory.getLogger(ParentDocumentRegistry.class);
+
+  private final ESSearchService esSearchService;
+
+  private final Map<String, Set<String>> identifiers = new ConcurrentHashMap<>();
+
+  public ParentDocumentRegistry(ESSearchService esSearchService) {
+    this.esSearchService = esSearchService;
+  }
+
+  /**
+   * Start registering the parent documents indexed by a synchronization.
+   *
+   * @param indexName
+   * @param entityType
+   * @param routing custom routing of the documents, if any: the parent document must be in the shard of its children
+   * @return
+   */
+  public Registration newRegistration(String indexName, String entityType, @Nullable String routing) {
+    String key = indexName + "/" + entityType + (routing == null ? "" : "/" + routing);
+    return new Registration(identifiers.computeIfAbsent(key, k -> load(indexName, entityType, routing)));
+  }
+
+  /**
+   * Forget about the parent documents of an index, for instance because the index was dropped.
+   *
+   * @param indexName
+   */
+  public void invalidate(String indexName) {
+    identifiers.keySet().removeIf(k -> k.startsWith(indexName + "/"));
+  }
+
+  public void clear() {
+    identifiers.clear();
+  }
+
+  /**
+   * The parent documents registered by one synchronization. They are pending until committed, i.e. until the bulks
+   * holding them have been sent successfully: a concurrent synchronization on the same index indexes them again
+   * rather than relying on documents that may never reach the index.
+   */
+  public static class Registration {
+
+    private final Set<String> committed;
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private Registration(Set<String> committed) {
+      this.committed = committed;
+    }
+
+    /**
+     * Register a parent document.
+     *
+     * @param identifier
+     * @return true if the document is not known to be in the index (or in the routed shard) yet
+     */
+    public boolean register(String identifier) {
+      return !committed.contains(identifier) && pending.add(identifier);
+    }
+
+    /**
+     * Make the pending parent documents known to the other synchronizations.
+     */
+    public void commit() {
+      committed.addAll(pending);
+      pending.clear();
+    }
+  }
+
+  private Set<String> load(String indexName, String entityType, @Nullable String routing) {
+    Set<String> loaded = ConcurrentHashMap.newKeySet();
+    SearchRequestBuilder search = esSearchService.getClient().prepareSearch() //
+        .setIndices(indexName) //
+        .setTypes(entityType) //
+        .setQuery(QueryBuilders.matchAllQuery()) //
+        .setNoFields();
+    if (routing != null) search.setRouting(routing);
+    try {
+      ScrollHelper.forEachHit(esSearchService.getClient(), search, hit -> loaded.add(hit.getId()));
+    } catch (IndexNotFoundException e) {
+      // no parent documents yet
+    }
+    log.debug("Loaded {} {} documents from index {}", loaded.size(), entityType, indexName);
+    return loaded;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.obiba.opal.spi.search.QuerySettings;
+
+import com.google.common.base.Joiner;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.protobuf.Message;
+
+/**
+ * Results of the queries, by normalised query settings and search path. A result is forgotten when the index of one
+ * of the tables it was filtered on is updated or deleted, or when any table index is updated if the query was not
+ * filtered on tables.
+ */
+public class QueryResultCache {
+
+  public static final long DEFAULT_MAX_SIZE = 32 * 1024 * 1024;
+
+  public static final long DEFAULT_TTL = 10 * 60 * 1000;
+
+  private final Cache<String, CachedResult> results;
+
+  private final boolean enabled;
+
+  // incremented on each invalidation, so that a result computed meanwhile is not cached
+  private final AtomicLong generation = new AtomicLong();
+
+  /**
+   * @param maxSize maximum serialized size in bytes of the cached results, no cache if not positive
+   * @param ttl time in milliseconds after which a result is computed again
+   */
+  public QueryResultCache(long maxSize, long ttl) {
+    enabled = maxSize > 0;
+    results = CacheBuilder.newBuilder() //
+        .maximumWeight(Math.max(maxSize, 0)) //
+        .weigher((String key, CachedResult value) -> value.size) //
+        .expireAfterWrite(Math.max(ttl, 0), TimeUnit.MILLISECONDS) //
+        .recordStats() //
+        .build();
+  }
+
+  /**
+   * Get the cached result of a query, or compute and cache it.
+   *
+   * @param kind kind of result
+   * @param querySettings
+   * @param searchPath
+   * @param loader computes the result
+   * @param <T>
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Message> T get(String kind, QuerySettings querySettings, String searchPath, Supplier<T> loader) {
+    if (!enabled) return loader.get();
+    String key = kind + "|" + searchPath + "|" + normalise(querySettings);
+    CachedResult cached = results.getIfPresent(key);
+    if (cached != null) return (T) cached.result;
+    long current = generation.get();
+    T result = loader.get();
+    put(key, current, querySettings, result);
+    return result;
+  }
+
+  /**
+   * Get the cached result of a query.
+   *
+   * @param kind kind of result
+   * @param querySettings
+   * @param searchPath
+   * @param <T>
+   * @return null if not cached
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends Message> T getIfPresent(String kind, QuerySettings querySettings, String searchPath) {
+    if (!enabled) return null;
+    CachedResult cached = results.getIfPresent(kind + "|" + searchPath + "|" + normalise(querySettings));
+    return cached == null ? null : (T) cached.result;
+  }
+
+  /**
+   * Cache the result of a query, unless the cache was invalidated since the given generation.
+   *
+   * @param kind kind of result
+   * @param querySettings
+   * @param searchPath
+   * @param since cache generation when the query was sent
+   * @param result
+   */
+  public void put(String kind, QuerySettings querySettings, String searchPath, long since, Message result) {
+    if (!enabled) return;
+    put(kind + "|" + searchPath + "|" + normalise(querySettings), since, querySettings, result);
+  }
+
+  /**
+   * Get the current cache generation, to be given back when caching a result computed asynchronously.
+   *
+   * @return
+   */
+  public long getGeneration() {
+    return generation.get();
+  }
+
+  /**
+   * Forget the results of the queries that may involve a table.
+   *
+   * @param tableReference
+   */
+  public void invalidate(String tableReference) {
+    generation.incrementAndGet();
+    results.asMap().values().removeIf(cached -> cached.references.isEmpty() || cached.references.contains(tableReference));
+  }
+
+  public void invalidateAll() {
+    generation.incrementAndGet();
+    results.invalidateAll();
+  }
+
+  public CacheStats getStats() {
+    return results.stats();
+  }
+
+  private void put(String key, long since, QuerySettings querySettings, Message result) {
+    Collection<String> references = querySettings.hasFilterReferences() ? querySettings.getFilterReferences() : null;
+    CachedResult cached = new CachedResult(result, references);
+    if (generation.get() != since) return;
+    results.put(key, cached);
+    // an invalidation may have happened while inserting
+    if (generation.get() != since) results.asMap().remove(key, cached);
+  }
+
+  /**
+   * Query settings in a form that does not depend on the order of the fields, facets and filter references.
+   *
+   * @param querySettings
+   * @return
+   */
+  private String normalise(QuerySettings querySettings) {
+    List<String> children = Lists.newArrayList();
+    if (querySettings.hasChildQueries()) {
+      for (QuerySettings.ChildQuery child : querySettings.getChildQueries())
+        children.add(child.getType() + ":" + child.getQuery());
+      Collections.sort(children);
+    }
+    return Joiner.on('|').useForNull("").join( //
+        querySettings.hasChildQueries() ? querySettings.getChildQueryOperator() + children : querySettings.getQuery(), //
+        querySettings.withDefaultFields(), //
+        querySettings.hasFields() ? sorted(querySettings.getFields()) : "", //
+        querySettings.hasFacets() ? sorted(querySettings.getFacets()) : "", //
+        querySettings.hasSort() ? querySettings.getSort() : "", //
+        querySettings.hasFilterReferences() ? sorted(querySettings.getFilterReferences()) : "", //
+        querySettings.getFrom(), //
+        querySettings.getSize());
+  }
+
+  private static List<String> sorted(Collection<String> values) {
+    List<String> sorted = Lists.newArrayList(values);
+    Collections.sort(sorted);
+    return sorted;
+  }
+
+  private static class CachedResult {
+
+    private final Message result;
+
+    // empty if the query is not filtered on tables
+    private final Set<String> references;
+
+    private final int size;
+
+    private CachedResult(Message result, Collection<String> references) {
+      this.result = result;
+      this.references = references == null ? ImmutableSet.of() : ImmutableSet.copyOf(references);
+      size = result.getSerializedSize();
+    }
+  }
+}
@@ -13,6 +13,17 @@ import com.google.common.collect.Iterators;
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.SingleBucketAggregation;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.cardinality.Cardinality;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentile;
+import org.elasticsearch.search.aggregations.metrics.percentiles.Percentiles;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.ExtendedStats;
 import org.obiba.opal.spi.search.support.ItemResultDtoStrategy;
 import org.obiba.opal.web.model.Opal;
 import org.obiba.opal.web.model.Search;
@@ -20,9 +31,10 @@ import org.obiba.opal.web.model.Search;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Map;
 
 /**
- * Utility class used to convert an elastic search JSON query to a DTO query.
+ * Utility class used to convert an elastic search query response, or its JSON rendering, to a DTO query result.
  */
 public class QueryResultConverter {
 
@@ -75,6 +87,46 @@ public class QueryResultConverter {
     return dtoResultsBuilder.build();
   }
 
+  /**
+   * Converts the search response to DTO query result, without rendering it in JSON.
+   *
+   * @param response
+   * @return Search.QueryResultDto
+   */
+  public Search.QueryResultDto convert(SearchResponse response) {
+    Search.QueryResultDto.Builder dtoResultsBuilder = Search.QueryResultDto.newBuilder();
+
+    convertHits(response.getHits(), dtoResultsBuilder);
+
+    if(response.getAggregations() != null) {
+      AggregationsConverter aggsConverter = new AggregationsConverter();
+      dtoResultsBuilder.addAllFacets(aggsConverter.convert(response.getAggregations()));
+    }
+
+    return dtoResultsBuilder.build();
+  }
+
+  /**
+   * Converts search hits that are not in a search response (e.g. merged from several searches) to DTO query result.
+   *
+   * @param hits
+   * @return Search.QueryResultDto
+   */
+  public Search.QueryResultDto convert(SearchHits hits) {
+    Search.QueryResultDto.Builder dtoResultsBuilder = Search.QueryResultDto.newBuilder();
+    convertHits(hits, dtoResultsBuilder);
+    return dtoResultsBuilder.build();
+  }
+
+  private void convertHits(SearchHits hits, Search.QueryResultDto.Builder dtoResultsBuilder) {
+    dtoResultsBuilder.setTotalHits((int) hits.getTotalHits());
+    if(hits.getHits().length > 0) {
+      HitsConverter hitsConverter = new HitsConverter();
+      hitsConverter.setStrategy(itemResultStrategy);
+      dtoResultsBuilder.addAllHits(hitsConverter.convert(hits));
+    }
+  }
+
   private static boolean countAboveThreshold(int count) {
     return count >= MINIMUM_RESULT_COUNT;
   }
@@ -108,6 +160,101 @@ public class QueryResultConverter {
       return facetsDtoList;
     }
 
+    public Collection<Search.FacetResultDto> convert(Aggregations aggregations) {
+      Collection<Search.FacetResultDto> facetsDtoList = new ArrayList<>();
+
+      for(Aggregation aggregation : aggregations) {
+        Search.FacetResultDto.Builder dtoResultBuilder = Search.FacetResultDto.newBuilder().setFacet(aggregation.getName());
+
+        convertAggregation(aggregation, dtoResultBuilder);
+
+        // missing, filter and global aggregations
+        if(aggregation instanceof SingleBucketAggregation) {
+          SingleBucketAggregation bucket = (SingleBucketAggregation) aggregation;
+          Aggregation nested = bucket.getAggregations().get("0");
+          if(nested != null) {
+            convertNestedAggregation(nested, dtoResultBuilder);
+          }
+          convertFiltered((int) bucket.getDocCount(), dtoResultBuilder);
+        }
+
+        facetsDtoList.add(dtoResultBuilder.build());
+      }
+
+      return facetsDtoList;
+    }
+
+    private void convertAggregation(Aggregation aggregation, Search.FacetResultDto.Builder dtoResultBuilder) {
+      if(aggregation instanceof Terms) {
+        convertBuckets((Terms) aggregation, dtoResultBuilder);
+      } else if(aggregation instanceof ExtendedStats) {
+        convertStats((ExtendedStats) aggregation, dtoResultBuilder);
+      } else if(aggregation instanceof Cardinality) {
+        convertCount((int) ((Cardinality) aggregation).getValue(), dtoResultBuilder);
+      } else if(aggregation instanceof Percentiles) {
+        convertValues((Percentiles) aggregation, dtoResultBuilder);
+      }
+    }
+
+    private void convertNestedAggregation(Aggregation aggregation, Search.FacetResultDto.Builder dtoResultBuilder) {
+      convertAggregation(aggregation, dtoResultBuilder);
+
+      if(aggregation instanceof SingleBucketAggregation) {
+        convertCount((int) ((SingleBucketAggregation) aggregation).getDocCount(), dtoResultBuilder);
+      }
+    }
+
+    private void convertFiltered(int count, Search.FacetResultDto.Builder dtoResultBuilder) {
+      if(countAboveThreshold(count)) {
+        dtoResultBuilder.addFilters(Search.FacetResultDto.FilterResultDto.newBuilder().setCount(count).build());
+      }
+    }
+
+    private void convertCount(int count, Search.FacetResultDto.Builder dtoResultBuilder) {
+      if(countAboveThreshold(count)) {
+        dtoResultBuilder.addValues(Search.FacetResultDto.ValueResultDto.newBuilder().setCount(count).build());
+      }
+    }
+
+    private void convertBuckets(Terms terms, Search.FacetResultDto.Builder dtoResultBuilder) {
+      for(Terms.Bucket bucket : terms.getBuckets()) {
+        int count = (int) bucket.getDocCount();
+        if(countAboveThreshold(count)) {
+          dtoResultBuilder.addFrequencies(Search.FacetResultDto.TermFrequencyResultDto.newBuilder()
+              .setTerm(bucket.getKeyAsString()).setCount(count).build());
+        }
+      }
+    }
+
+    private void convertValues(Percentiles percentiles, Search.FacetResultDto.Builder dtoResultBuilder) {
+      for(Percentile percentile : percentiles) {
+        dtoResultBuilder.addValues(Search.FacetResultDto.ValueResultDto.newBuilder()
+            .setKey(String.valueOf(percentile.getPercent())).setValue(finite(percentile.getValue())).build());
+      }
+    }
+
+    private void convertStats(ExtendedStats stats, Search.FacetResultDto.Builder dtoResultBuilder) {
+      int count = (int) stats.getCount();
+      if(countAboveThreshold(count)) {
+        // the stats of no values are not finite
+        Search.FacetResultDto.StatisticalResultDto dtoStatistical = Search.FacetResultDto.StatisticalResultDto
+            .newBuilder().setCount(count) //
+            .setTotal(finite(stats.getSum())) //
+            .setMin(finite(stats.getMin())) //
+            .setMax(finite(stats.getMax())) //
+            .setMean(finite(stats.getAvg())) //
+            .setSumOfSquares(finite(stats.getSumOfSquares())) //
+            .setVariance(finite(stats.getVariance())) //
+            .setStdDeviation(finite(stats.getStdDeviation())).build();
+
+        dtoResultBuilder.setStatistics(dtoStatistical);
+      }
+    }
+
+    private float finite(double value) {
+      return Double.isNaN(value) || Double.isInfinite(value) ? 0 : (float) value;
+    }
+
     private void convertAggregation(JSONObject jsonAggregation, Search.FacetResultDto.Builder dtoResultBuilder)
         throws JSONException {
       if(jsonAggregation.has("buckets")) {
@@ -252,6 +399,43 @@ public class QueryResultConverter {
       return itemsDtoList;
     }
 
+    public Collection<Search.ItemResultDto> convert(SearchHits hits) {
+      Collection<Search.ItemResultDto> itemsDtoList = new ArrayList<>();
+
+      for(SearchHit hit : hits) {
+        Search.ItemResultDto.Builder dtoItemResultBuilder = Search.ItemResultDto.newBuilder();
+        dtoItemResultBuilder.setIdentifier(hit.getId());
+        Map<String, Object> source = hit.getSource();
+        if (source != null) {
+          if (source.containsKey("identifier"))
+            dtoItemResultBuilder.setIdentifier(String.valueOf(source.get("identifier")));
+          convertFields(dtoItemResultBuilder, source);
+        }
+        if(itemResultStrategy != null) itemResultStrategy.process(dtoItemResultBuilder);
+
+        itemsDtoList.add(dtoItemResultBuilder.build());
+      }
+
+      return itemsDtoList;
+    }
+
+    private void convertFields(Search.ItemResultDto.Builder dtoItemResultBuilder, Map<String, Object> fields) {
+      Search.ItemFieldsDto.Builder dtoItemFieldsBuilder = Search.ItemFieldsDto.newBuilder();
+      for(Map.Entry<String, Object> field : fields.entrySet()) {
+        Opal.EntryDto.Builder entryBuilder = Opal.EntryDto.newBuilder();
+        entryBuilder.setKey(field.getKey());
+        if (field.getValue() instanceof Collection) {
+          for (Object value : (Collection<?>) field.getValue()) {
+            entryBuilder.addValues(String.valueOf(value));
+          }
+        }
+        else
+          entryBuilder.setValue(String.valueOf(field.getValue()));
+        dtoItemFieldsBuilder.addFields(entryBuilder.build());
+      }
+      dtoItemResultBuilder.setExtension(Search.ItemFieldsDto.item, dtoItemFieldsBuilder.build());
+    }
+
     private void convertFields(Search.ItemResultDto.Builder dtoItemResultBuilder, JSONObject jsonFields)
         throws JSONException {
       Search.ItemFieldsDto.Builder dtoItemFieldsBuilder = Search.ItemFieldsDto.newBuilder();
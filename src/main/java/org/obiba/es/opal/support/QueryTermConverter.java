@@ -10,12 +10,14 @@
 package org.obiba.es.opal.support;
 
 import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
 import org.obiba.magma.NoSuchVariableException;
 import org.obiba.magma.support.MagmaEngineVariableResolver;
 import org.obiba.magma.support.VariableNature;
+import org.obiba.opal.spi.search.ValueTableValuesIndex;
 import org.obiba.opal.spi.search.support.ValueTableIndexManager;
 import org.obiba.opal.web.model.Search;
 
@@ -271,6 +273,35 @@ class QueryTermConverter {
     }
   }
 
+  /**
+   * Get the physical indices of the tables involved in the converted query, for the search to be routed to them only.
+   *
+   * @return
+   */
+  List<String> getIndexNames() {
+    return valueTableIndexManagers.values().stream().map(manager -> manager.getValueTableValuesIndex().getIndexName())
+        .distinct().collect(Collectors.toList());
+  }
+
+  /**
+   * Get the custom routing of the documents of the tables involved in the converted query, for the search to hit only
+   * the shards holding them.
+   *
+   * @return null if the documents of one of the tables are not routed by table
+   */
+  List<String> getRoutings() {
+    List<String> routings = Lists.newArrayList();
+    for (ValueTableIndexManager manager : valueTableIndexManagers.values()) {
+      ValueTableValuesIndex index = manager.getValueTableValuesIndex();
+      String routing = index instanceof ESIndexManager.ESValueTableIndex
+          ? ((ESIndexManager.ESValueTableIndex) index).getRouting()
+          : null;
+      if (routing == null) return null;
+      routings.add(routing);
+    }
+    return routings;
+  }
+
   private String getQueryString() {
     return Joiner.on(" OR ").join(valueTableIndexManagers.values().stream().map(ValueTableIndexManager::getQuery).collect(Collectors.toList()));
   }
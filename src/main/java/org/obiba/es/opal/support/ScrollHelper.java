@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortOrder;
+
+/**
+ * Walks through all the hits of a search with a scroll, one page at a time.
+ */
+public class ScrollHelper {
+
+  public static final int DEFAULT_PAGE_SIZE = 1000;
+
+  private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+  private ScrollHelper() {}
+
+  /**
+   * Scroll the hits of the search in index order, the search sort and size being overridden.
+   *
+   * @param client
+   * @param search
+   * @param consumer
+   * @return the total number of hits
+   */
+  public static long forEachHit(Client client, SearchRequestBuilder search, Consumer<SearchHit> consumer) {
+    return forEachHit(client, search.addSort("_doc", SortOrder.ASC), DEFAULT_PAGE_SIZE, consumer);
+  }
+
+  /**
+   * Scroll the hits of the search.
+   *
+   * @param client
+   * @param search
+   * @param pageSize number of hits per shard and per page
+   * @param consumer
+   * @return the total number of hits
+   */
+  public static long forEachHit(Client client, SearchRequestBuilder search, int pageSize, Consumer<SearchHit> consumer) {
+    return forEachHit(client, search, pageSize, total -> {}, hit -> {
+      consumer.accept(hit);
+      return true;
+    });
+  }
+
+  /**
+   * Scroll the hits of the search until the consumer asks to stop.
+   *
+   * @param client
+   * @param search
+   * @param pageSize number of hits per shard and per page
+   * @param onTotal notified of the total number of hits before the first hit is consumed
+   * @param consumer returns false to stop scrolling
+   * @return the total number of hits
+   */
+  public static long forEachHit(Client client, SearchRequestBuilder search, int pageSize, LongConsumer onTotal,
+      Predicate<SearchHit> consumer) {
+    SearchResponse response = search.setSize(pageSize).setScroll(KEEP_ALIVE).execute().actionGet();
+    long total = response.getHits().getTotalHits();
+    onTotal.accept(total);
+    String scrollId = response.getScrollId();
+    try {
+      while (response.getHits().getHits().length > 0) {
+        for (SearchHit hit : response.getHits()) {
+          if (!consumer.test(hit)) return total;
+        }
+        response = client.prepareSearchScroll(scrollId).setScroll(KEEP_ALIVE).execute().actionGet();
+        scrollId = response.getScrollId();
+      }
+    } finally {
+      if (scrollId != null) client.prepareClearScroll().addScrollId(scrollId).execute();
+    }
+    return total;
+  }
+
+}
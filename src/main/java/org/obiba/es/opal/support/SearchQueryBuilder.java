@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.query.QueryStringQueryBuilder;
+import org.elasticsearch.search.sort.SortOrder;
+import org.obiba.opal.spi.search.QuerySettings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the search request of some {@link QuerySettings}: query, sort, fields and filter. The facets are not
+ * requested, as they were not with the previous JSON request.
+ */
+public class SearchQueryBuilder {
+
+  private static final Logger log = LoggerFactory.getLogger(SearchQueryBuilder.class);
+
+  private QuerySettings querySettings;
+
+  private SearchQueryBuilder(QuerySettings settings) {
+    querySettings = settings;
+  }
+
+  //
+  // Public methods
+  //
+
+  public static SearchQueryBuilder newSearchQuery(QuerySettings settings) {
+    SearchQueryBuilder builder = new SearchQueryBuilder(settings);
+    return builder;
+  }
+
+  /**
+   * Set the query settings in the search request.
+   *
+   * @param request
+   * @return the search request
+   */
+  public SearchRequestBuilder build(SearchRequestBuilder request) {
+    if (querySettings.hasChildQueries())
+      request.setQuery(buildHasChildQueries());
+    else
+      request.setQuery(buildQueryString(querySettings.getQuery(), querySettings.withDefaultFields()));
+    if (querySettings.hasSort()) buildSort(request);
+    if (querySettings.hasFields()) request.setFetchSource(querySettings.getFields().toArray(new String[0]), new String[0]);
+    if (querySettings.hasFilterReferences())
+      request.setPostFilter(QueryBuilders.termsQuery("reference", querySettings.getFilterReferences()));
+    request.setFrom(querySettings.getFrom()).setSize(querySettings.getSize());
+    return request;
+  }
+
+  //
+  // Private members
+  //
+
+  private QueryStringQueryBuilder buildQueryString(String query, boolean defaultFields) {
+    QueryStringQueryBuilder builder = QueryBuilders.queryStringQuery(query);
+    if (defaultFields && !querySettings.hasFacets() && !"*".equals(query)) {
+      // a field boost (field^boost) is interpreted by Elasticsearch
+      for (String field : querySettings.defaultQueryFields) builder.field(field);
+    }
+    builder.defaultOperator(
+        QueryStringQueryBuilder.Operator.valueOf(String.valueOf(querySettings.DEFAULT_QUERY_OPERATOR).toUpperCase()));
+    return builder;
+  }
+
+  private BoolQueryBuilder buildHasChildQueries() {
+    BoolQueryBuilder builder = QueryBuilders.boolQuery();
+    for (QuerySettings.ChildQuery child : querySettings.getChildQueries()) {
+      QueryBuilder hasChild = QueryBuilders.hasChildQuery(child.getType(), buildQueryString(child.getQuery(), false));
+      switch (querySettings.getChildQueryOperator()) {
+        case "should":
+          builder.should(hasChild);
+          break;
+        case "must_not":
+          builder.mustNot(hasChild);
+          break;
+        case "filter":
+          builder.filter(hasChild);
+          break;
+        default:
+          builder.must(hasChild);
+      }
+    }
+    return builder;
+  }
+
+  private void buildSort(SearchRequestBuilder request) {
+    for (String sortWithOrder : querySettings.getSort()) {
+      String[] tokens = sortWithOrder.split(":");
+      try {
+        request.addSort(tokens[0], tokens.length < 2 ? SortOrder.ASC : SortOrder.valueOf(tokens[1].toUpperCase()));
+      } catch (IllegalArgumentException e) {
+        log.warn("Unable to interpret the sort: " + sortWithOrder);
+      }
+    }
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.obiba.magma.ValueTable;
+import org.obiba.opal.spi.search.VariableSummaryHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.Iterables;
+
+/**
+ * Computes the variable summaries of the indexed tables with a bounded number of threads. There is at most one
+ * pending computation per table, the smaller tables are processed first and a computation can be cancelled when its
+ * table is synchronized again. A running computation is not interrupted, as the summaries handler does not support
+ * it: the summaries being computed are cleared instead, and the next computation of the table waits for it to end.
+ */
+public class SummaryScheduler {
+
+  private static final Logger log = LoggerFactory.getLogger(SummaryScheduler.class);
+
+  public static final int DEFAULT_THREADS = 2;
+
+  private final VariableSummaryHandler variableSummaryHandler;
+
+  private final ThreadPoolExecutor executor;
+
+  private final Map<String, SummaryTask> tasks = new ConcurrentHashMap<>();
+
+  private final AtomicLong sequence = new AtomicLong();
+
+  public SummaryScheduler(VariableSummaryHandler variableSummaryHandler, ThreadFactory threadFactory, int threads) {
+    this.variableSummaryHandler = variableSummaryHandler;
+    int poolSize = Math.max(threads, 1);
+    executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<>(),
+        threadFactory == null ? Executors.defaultThreadFactory() : threadFactory);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Schedule the computation of the table's variable summaries, unless one is already pending. If one is running, the
+   * new computation starts once it is done.
+   *
+   * @param table
+   */
+  public void schedule(ValueTable table) {
+    SummaryTask task = new SummaryTask(table);
+    tasks.compute(table.getTableReference(), (reference, last) -> {
+      if (last != null && last.isPending()) {
+        log.debug("Summaries of table {} are already scheduled", reference);
+        return last;
+      }
+      if (last == null || !last.then(task)) executor.execute(task);
+      return task;
+    });
+  }
+
+  /**
+   * Cancel the pending computation of the table's variable summaries, if any, and clear what was being computed.
+   *
+   * @param table
+   */
+  public void cancel(ValueTable table) {
+    tasks.computeIfPresent(table.getTableReference(), (reference, task) -> {
+      log.debug("Cancelling summaries computation of table {}", reference);
+      task.cancel();
+      variableSummaryHandler.clearComputingSummaries(table);
+      // a queued task is dropped, a running one is kept so that the next computation of the table waits for it
+      return executor.remove(task) ? null : task;
+    });
+  }
+
+  public void shutdown() {
+    executor.shutdownNow();
+    tasks.clear();
+  }
+
+  private class SummaryTask implements Runnable, Comparable<SummaryTask> {
+
+    private final ValueTable table;
+
+    private final long size;
+
+    private final long order;
+
+    private boolean cancelled;
+
+    private boolean started;
+
+    private boolean finished;
+
+    // computation of the same table to run once this one is done
+    private SummaryTask next;
+
+    private SummaryTask(ValueTable table) {
+      this.table = table;
+      size = (long) table.getVariableEntityCount() * Iterables.size(table.getVariables());
+      order = sequence.incrementAndGet();
+    }
+
+    // once started, a task stays started: a schedule() call then never mistakes it for a pending one
+    private synchronized boolean isPending() {
+      return !started && !cancelled;
+    }
+
+    private synchronized boolean isCancelled() {
+      return cancelled;
+    }
+
+    private synchronized void cancel() {
+      cancelled = true;
+    }
+
+    /**
+     * Chain a task to run once this one is done.
+     *
+     * @param task
+     * @return false if this task is already done
+     */
+    private synchronized boolean then(SummaryTask task) {
+      if (finished) return false;
+      next = task;
+      return true;
+    }
+
+    @Override
+    public void run() {
+      try {
+        synchronized (this) {
+          if (cancelled) return;
+          started = true;
+        }
+        variableSummaryHandler.computeSummaries(table);
+      } catch (RuntimeException e) {
+        if (!isCancelled()) log.warn("Summaries computation of table {} failed", table.getTableReference(), e);
+      } finally {
+        done();
+      }
+    }
+
+    private void done() {
+      SummaryTask chained;
+      synchronized (this) {
+        finished = true;
+        chained = next;
+      }
+      if (chained == null) tasks.remove(table.getTableReference(), this);
+      else if (!executor.isShutdown()) executor.execute(chained);
+    }
+
+    @Override
+    public int compareTo(SummaryTask other) {
+      int cmp = Long.compare(size, other.size);
+      return cmp == 0 ? Long.compare(order, other.order) : cmp;
+    }
+  }
+}
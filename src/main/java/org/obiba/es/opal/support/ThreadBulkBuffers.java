@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Gives each thread its own {@link BulkBuffer}, so that several reader threads fill bulks without contention. What is
+ * left in the buffers must be drained once the threads are done.
+ */
+public class ThreadBulkBuffers {
+
+  private final Queue<BulkBuffer> bulkBuffers = new ConcurrentLinkedQueue<>();
+
+  private final ThreadLocal<BulkBuffer> threadBulkBuffer;
+
+  public ThreadBulkBuffers(Supplier<BulkBuffer> bulkBufferFactory) {
+    threadBulkBuffer = ThreadLocal.withInitial(() -> {
+      BulkBuffer bulkBuffer = bulkBufferFactory.get();
+      bulkBuffers.add(bulkBuffer);
+      return bulkBuffer;
+    });
+  }
+
+  /**
+   * Get the buffer of the current thread.
+   *
+   * @return
+   */
+  public BulkBuffer get() {
+    return threadBulkBuffer.get();
+  }
+
+  /**
+   * Merge what is left in the buffers of all the threads into the target buffer. The target buffer is passed to the
+   * consumer after each merge, so that it can be sent as soon as it is full.
+   *
+   * @param target
+   * @param onMerged
+   */
+  public void drainTo(BulkBuffer target, Consumer<BulkBuffer> onMerged) {
+    for (BulkBuffer bulkBuffer : bulkBuffers) {
+      bulkBuffer.drainTo(target);
+      onMerged.accept(target);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.function.Function;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.obiba.magma.Value;
+import org.obiba.magma.Variable;
+import org.obiba.magma.support.VariableNature;
+import org.obiba.magma.type.DateType;
+
+/**
+ * What is needed to index the values of each of the variables of a table, resolved once before reading the table
+ * and indexed by the variable position.
+ */
+public class ValuesColumnPlan {
+
+  private final Variable[] variables;
+
+  private final SerializableString[] fieldNames;
+
+  private final ValueConverter[] converters;
+
+  /**
+   * @param variables variables in the order in which their values will be read
+   * @param fieldNames index field name of a variable
+   */
+  public ValuesColumnPlan(Variable[] variables, Function<Variable, String> fieldNames) {
+    this.variables = variables.clone();
+    this.fieldNames = new SerializableString[variables.length];
+    converters = new ValueConverter[variables.length];
+    for (int i = 0; i < variables.length; i++) {
+      this.fieldNames[i] = new SerializedString(fieldNames.apply(variables[i]));
+      converters[i] = createConverter(variables[i]);
+    }
+  }
+
+  public int size() {
+    return variables.length;
+  }
+
+  public Variable getVariable(int position) {
+    return variables[position];
+  }
+
+  public SerializableString getFieldName(int position) {
+    return fieldNames[position];
+  }
+
+  /**
+   * Get the object to be indexed for a (non sequence) value.
+   *
+   * @param position
+   * @param value
+   * @return
+   */
+  @Nullable
+  public Object toIndexValue(int position, Value value) {
+    return converters[position].convert(value);
+  }
+
+  /**
+   * OPAL-1158: missing values are indexed as null for continuous variables
+   *
+   * @param variable the variable
+   * @return a value converter
+   */
+  private static ValueConverter createConverter(Variable variable) {
+    ValueConverter converter = DateType.get().equals(variable.getValueType())
+        ? value -> value.isNull() ? null : value.getValue().toString() // ie MagmaDate.toString()
+        : value -> value.isNull() ? null : value.getValue();
+    if (VariableNature.getNature(variable) == VariableNature.CONTINUOUS) {
+      return value -> variable.isMissingValue(value) ? null : converter.convert(value);
+    }
+    return converter;
+  }
+
+  @FunctionalInterface
+  private interface ValueConverter {
+    @Nullable
+    Object convert(Value value);
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.util.Date;
+
+import javax.annotation.Nullable;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.obiba.magma.ValueTable;
+
+/**
+ * Writes the JSON source of the value set documents of a table. The fields that are the same for all the documents
+ * of the table are serialized once, and each thread writes its documents in its own reused buffer.
+ */
+public class ValuesDocumentEncoder {
+
+  private static final JsonFactory JSON_FACTORY = new JsonFactory().setRootValueSeparator(null);
+
+  // same date format as XContentBuilder
+  private static final DateTimeFormatter DATE_PRINTER = ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC);
+
+  // encoded once, written as is in every document
+  private final SerializableString header;
+
+  private final ThreadLocal<Document> documents = ThreadLocal.withInitial(Document::new);
+
+  public ValuesDocumentEncoder(ValueTable table) {
+    try {
+      StringWriter writer = new StringWriter();
+      JsonGenerator generator = JSON_FACTORY.createGenerator(writer);
+      generator.writeStartObject();
+      generator.writeStringField("project", table.getDatasource().getName());
+      generator.writeStringField("datasource", table.getDatasource().getName());
+      generator.writeStringField("table", table.getName());
+      generator.writeStringField("reference", table.getTableReference());
+      generator.writeStringField("entityType", table.getEntityType());
+      generator.writeEndObject();
+      generator.close();
+      String fields = writer.toString();
+      // fields separator included, enclosing braces excluded
+      header = new SerializedString("," + fields.substring(1, fields.length() - 1));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Start the document of an entity, in a buffer that belongs to the current thread.
+   *
+   * @param identifier entity identifier
+   * @return
+   * @throws IOException
+   */
+  public Document start(String identifier) throws IOException {
+    Document document = documents.get();
+    document.start(identifier);
+    return document;
+  }
+
+  /**
+   * The document being written by the current thread.
+   */
+  public class Document {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+
+    private JsonGenerator generator;
+
+    private void start(String identifier) throws IOException {
+      out.reset();
+      // a previous document could have been left unfinished by an error
+      if (generator == null || !generator.getOutputContext().inRoot()) generator = JSON_FACTORY.createGenerator(out);
+      generator.writeStartObject();
+      generator.writeStringField("identifier", identifier);
+      // the generator context is not aware of the raw fields, but as there is already one field it writes
+      // the separator before the next one
+      generator.writeRaw(header);
+    }
+
+    public Document field(String name, @Nullable Object value) throws IOException {
+      generator.writeFieldName(name);
+      return value(value);
+    }
+
+    public Document field(SerializableString name, @Nullable Object value) throws IOException {
+      generator.writeFieldName(name);
+      return value(value);
+    }
+
+    public Document startArray(String name) throws IOException {
+      generator.writeArrayFieldStart(name);
+      return this;
+    }
+
+    public Document startArray(SerializableString name) throws IOException {
+      generator.writeFieldName(name);
+      generator.writeStartArray();
+      return this;
+    }
+
+    public Document endArray() throws IOException {
+      generator.writeEndArray();
+      return this;
+    }
+
+    public Document value(@Nullable Object value) throws IOException {
+      if (value == null) generator.writeNull();
+      else if (value instanceof String) generator.writeString((String) value);
+      else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+        generator.writeNumber(((Number) value).longValue());
+      else if (value instanceof Double || value instanceof Float) generator.writeNumber(((Number) value).doubleValue());
+      else if (value instanceof BigDecimal) generator.writeNumber((BigDecimal) value);
+      else if (value instanceof Boolean) generator.writeBoolean((Boolean) value);
+      else if (value instanceof Date) generator.writeString(DATE_PRINTER.print(((Date) value).getTime()));
+      else generator.writeString(value.toString());
+      return this;
+    }
+
+    /**
+     * Complete the document.
+     *
+     * @return a copy of the document source
+     * @throws IOException
+     */
+    public byte[] end() throws IOException {
+      generator.writeEndObject();
+      generator.flush();
+      return out.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.obiba.es.opal.support.QueryResultCache;
+import org.obiba.opal.spi.search.HitsQueryCallback;
+import org.obiba.opal.spi.search.QuerySettings;
+import org.obiba.opal.web.model.Search;
+
+import com.google.common.collect.Lists;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyString;
+import static org.easymock.EasyMock.createMockBuilder;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+
+public class ESSearchServiceAsyncTest {
+
+  private static final int DOCUMENTS = 50;
+
+  private static final String SEARCH_PATH = "opal-values/Participant";
+
+  private static Path home;
+
+  private static Node node;
+
+  private static Client client;
+
+  private ESSearchService service;
+
+  @BeforeClass
+  public static void startNode() throws IOException {
+    home = Files.createTempDirectory("es-async");
+    node = NodeBuilder.nodeBuilder().local(true).clusterName("async") //
+        .settings(Settings.settingsBuilder().put("path.home", home.toString()).put("http.enabled", false)) //
+        .node();
+    client = node.client();
+    BulkRequestBuilder bulk = client.prepareBulk();
+    for (int i = 0; i < DOCUMENTS; i++)
+      bulk.add(client.prepareIndex("opal-values", "Participant", "" + i).setSource("{\"identifier\":\"" + i + "\"}"));
+    assertThat(bulk.setRefresh(true).execute().actionGet().hasFailures()).isFalse();
+  }
+
+  @AfterClass
+  public static void stopNode() {
+    if (node != null) node.close();
+  }
+
+  @After
+  public void tearDown() {
+    if (service != null) service.stop();
+  }
+
+  @Test
+  public void test_query_async() throws Exception {
+    service = createService(new Properties());
+    Search.QueryResultDto result = service.executeQueryAsync(querySettings(10), SEARCH_PATH, null).get(5, TimeUnit.SECONDS);
+
+    assertThat(result.getTotalHits()).isEqualTo(DOCUMENTS);
+    assertThat(result.getHitsCount()).isEqualTo(10);
+    // cached
+    assertThat(service.executeQueryAsync(querySettings(10), SEARCH_PATH, null).isDone()).isTrue();
+    assertThat(service.getQueryResultCache().getStats().hitCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_query_without_cache() throws Exception {
+    service = createService(new Properties(), null);
+
+    assertThat(service.executeQuery(querySettings(10), SEARCH_PATH, null).getTotalHits()).isEqualTo(DOCUMENTS);
+    Search.QueryResultDto result = service.executeQueryAsync(querySettings(10), SEARCH_PATH, null).get(5, TimeUnit.SECONDS);
+    assertThat(result.getTotalHits()).isEqualTo(DOCUMENTS);
+    assertThat(result.getHitsCount()).isEqualTo(10);
+  }
+
+  @Test
+  public void test_identifiers_query_async() throws Exception {
+    service = createService(new Properties());
+    AtomicInteger total = new AtomicInteger();
+    List<String> identifiers = Lists.newCopyOnWriteArrayList();
+
+    service.executeIdentifiersQueryAsync(querySettings(20), SEARCH_PATH, callback(total, identifiers, null))
+        .get(5, TimeUnit.SECONDS);
+
+    assertThat(total.get()).isEqualTo(DOCUMENTS);
+    assertThat(identifiers).hasSize(20);
+  }
+
+  @Test
+  public void test_identifiers_scroll_async() throws Exception {
+    service = createService(scrollThreshold());
+    AtomicInteger total = new AtomicInteger();
+    List<String> identifiers = Lists.newCopyOnWriteArrayList();
+
+    service.executeIdentifiersQueryAsync(querySettings(100), SEARCH_PATH, callback(total, identifiers, null))
+        .get(5, TimeUnit.SECONDS);
+
+    assertThat(total.get()).isEqualTo(DOCUMENTS);
+    assertThat(identifiers).hasSize(DOCUMENTS).doesNotHaveDuplicates();
+  }
+
+  @Test
+  public void test_identifiers_scroll_cancelled() throws Exception {
+    service = createService(scrollThreshold());
+    List<String> identifiers = Lists.newCopyOnWriteArrayList();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    // the first identifier blocks the scroll until it is interrupted
+    Runnable onFirst = () -> {
+      started.countDown();
+      try {
+        Thread.sleep(5000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        interrupted.countDown();
+      }
+    };
+
+    CompletableFuture<Void> future = service.executeIdentifiersQueryAsync(querySettings(100), SEARCH_PATH,
+        callback(new AtomicInteger(), identifiers, onFirst));
+    assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+    future.cancel(true);
+
+    assertThat(interrupted.await(5, TimeUnit.SECONDS)).isTrue();
+    Thread.sleep(200);
+    assertThat(identifiers).hasSize(1);
+  }
+
+  private ESSearchService createService(Properties properties) {
+    return createService(properties,
+        new QueryResultCache(QueryResultCache.DEFAULT_MAX_SIZE, QueryResultCache.DEFAULT_TTL));
+  }
+
+  private ESSearchService createService(Properties properties, QueryResultCache cache) {
+    ESSearchService service = createMockBuilder(ESSearchService.class).withConstructor() //
+        .addMockedMethods("getClient", "getQueryResultCache") //
+        .createMock();
+    expect(service.getClient()).andReturn(client).anyTimes();
+    expect(service.getQueryResultCache()).andReturn(cache).anyTimes();
+    replay(service);
+    service.configure(properties);
+    return service;
+  }
+
+  private Properties scrollThreshold() {
+    Properties properties = new Properties();
+    properties.setProperty("identifiersScrollThreshold", "10");
+    return properties;
+  }
+
+  private QuerySettings querySettings(int size) {
+    QuerySettings querySettings = createNiceMock(QuerySettings.class);
+    expect(querySettings.getQuery()).andReturn("*").anyTimes();
+    expect(querySettings.getSize()).andReturn(size).anyTimes();
+    replay(querySettings);
+    return querySettings;
+  }
+
+  @SuppressWarnings("unchecked")
+  private HitsQueryCallback<String> callback(AtomicInteger total, List<String> identifiers, Runnable onFirst) {
+    HitsQueryCallback<String> callback = createNiceMock(HitsQueryCallback.class);
+    callback.onTotal(anyInt());
+    expectLastCall().andAnswer(() -> {
+      total.set((Integer) getCurrentArguments()[0]);
+      return null;
+    }).anyTimes();
+    callback.onIdentifier(anyString());
+    expectLastCall().andAnswer(() -> {
+      identifiers.add((String) getCurrentArguments()[0]);
+      if (identifiers.size() == 1 && onFirst != null) onFirst.run();
+      return null;
+    }).anyTimes();
+    replay(callback);
+    return callback;
+  }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Function;
+
+import org.elasticsearch.action.delete.DeleteAction;
+import org.elasticsearch.action.delete.DeleteRequestBuilder;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.junit.Test;
+import org.obiba.es.opal.support.IndexMetadataCache;
+import org.obiba.es.opal.support.IndexStateStore;
+import org.obiba.es.opal.support.IndexStatus;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.NoSuchDatasourceException;
+import org.obiba.magma.Timestamps;
+import org.obiba.magma.Value;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.type.DateTimeType;
+import org.obiba.opal.spi.search.SearchSettings;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyString;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createMockBuilder;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+
+public class ESValuesIndexManagerTest {
+
+  private static final Value LAST_UPDATE = DateTimeType.get().valueOf(new Date(1500000000000L));
+
+  @Test
+  public void test_index_states_of_a_datasource_read_at_once() {
+    IndexStateStore store = createStateStore();
+    ESValuesIndexManager manager = createManager(store, new Properties());
+    Datasource datasource = createMock(Datasource.class);
+    ValueTable table1 = createMockTable(datasource, "ds", "table1", LAST_UPDATE);
+    ValueTable table2 = createMockTable(datasource, "ds", "table2", LAST_UPDATE);
+    expect(datasource.getName()).andReturn("ds").anyTimes();
+    expect(datasource.getValueTables()).andReturn(ImmutableSet.of(table1, table2)).anyTimes();
+    replay(datasource);
+
+    assertThat(manager.hasIndex(table1)).isFalse();
+    assertThat(manager.isIndexUpToDate(table2)).isTrue();
+    assertThat(manager.getIndex(table2).getTimestamps().getLastUpdate()).isEqualTo(LAST_UPDATE);
+    verify(store);
+  }
+
+  @Test
+  public void test_index_status_of_tables() {
+    IndexStateStore store = createStateStore();
+    ESValuesIndexManager manager = createManager(store, new Properties());
+    Datasource datasource = createMock(Datasource.class);
+    ValueTable indexed = createMockTable(datasource, "ds", "indexed", LAST_UPDATE);
+    ValueTable updated = createMockTable(datasource, "ds", "updated", DateTimeType.get().valueOf(new Date()));
+    expect(datasource.getName()).andReturn("ds").anyTimes();
+    replay(datasource);
+
+    Map<String, IndexStatus> statuses = manager.getIndexStatus(ImmutableList.of(indexed, updated));
+
+    assertThat(statuses.keySet()).containsExactly("ds.indexed", "ds.updated");
+    assertThat(statuses.get("ds.indexed").getLastUpdate()).isEqualTo(LAST_UPDATE);
+    assertThat(statuses.get("ds.indexed").isUpToDate()).isTrue();
+    assertThat(statuses.get("ds.updated").isUpToDate()).isFalse();
+    verify(store);
+  }
+
+  @Test
+  public void test_search_indices_shared_layout() {
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), new Properties());
+    Map<String, ValueTable> tables = createMockTables("ds.t1", "ds.t2", "other.t3");
+
+    assertThat(manager.getIndex(tables.get("ds.t1")).getIndexName()).isEqualTo("opal-values");
+    assertThat(manager.getSearchIndices(tables.keySet(), tables::get)).containsExactly("opal-values");
+  }
+
+  @Test
+  public void test_search_indices_datasource_layout() {
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), layout("datasource"));
+    Map<String, ValueTable> tables = createMockTables("ds.t1", "ds.t2", "other.t3");
+    String dsIndex = manager.getIndex(tables.get("ds.t1")).getIndexName();
+    String otherIndex = manager.getIndex(tables.get("other.t3")).getIndexName();
+
+    assertThat(dsIndex).startsWith("opal-values-ds-");
+    assertThat(otherIndex).startsWith("opal-values-other-");
+    assertThat(manager.getIndex(tables.get("ds.t2")).getIndexName()).isEqualTo(dsIndex);
+    assertThat(manager.getSearchIndices(ImmutableList.of("ds.t1", "ds.t2"), tables::get)).containsExactly(dsIndex);
+    assertThat(manager.getSearchIndices(ImmutableList.of("ds.t1", "other.t3"), tables::get))
+        .containsExactly(dsIndex, otherIndex);
+  }
+
+  @Test
+  public void test_search_indices_table_layout() {
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), layout("table"));
+    Map<String, ValueTable> tables = createMockTables("ds.t1", "ds.t2");
+    String t1Index = manager.getIndex(tables.get("ds.t1")).getIndexName();
+    String t2Index = manager.getIndex(tables.get("ds.t2")).getIndexName();
+
+    assertThat(t1Index).startsWith("opal-values-ds__t1-");
+    assertThat(t2Index).startsWith("opal-values-ds__t2-");
+    assertThat(manager.getSearchIndices(ImmutableList.of("ds.t1", "ds.t2"), tables::get))
+        .containsExactly(t1Index, t2Index);
+  }
+
+  @Test
+  public void test_search_indices_of_missing_tables() {
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), layout("table"));
+    Map<String, ValueTable> tables = createMockTables("ds.t1");
+    Function<String, ValueTable> resolver = reference -> {
+      if (!tables.containsKey(reference)) throw new NoSuchDatasourceException(reference.split("\\.")[0]);
+      return tables.get(reference);
+    };
+    String t1Index = manager.getIndex(tables.get("ds.t1")).getIndexName();
+
+    assertThat(manager.getSearchIndices(ImmutableList.of("ds.t1", "missing.t2"), resolver)).containsExactly(t1Index);
+    assertThat(manager.getSearchIndices(ImmutableList.of("missing.t2"), resolver)).containsExactly("opal-values");
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void test_search_indices_failure_not_hidden() {
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), layout("table"));
+    manager.getSearchIndices(ImmutableList.of("ds.t1"), reference -> {
+      throw new IllegalStateException();
+    });
+  }
+
+  @Test
+  public void test_entity_copies_shared_layout() {
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), new Properties());
+
+    assertThat(manager.hasEntityCopies(ImmutableList.of("opal-values"), null)).isFalse();
+    assertThat(manager.isEntityType("Participant")).isTrue();
+    assertThat(manager.isEntityType("ValueSet")).isFalse();
+  }
+
+  @Test
+  public void test_entity_copies_table_layout() {
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), layout("table"));
+    Map<String, ValueTable> tables = createMockTables("ds.t1", "ds.t2");
+    String t1Index = manager.getIndex(tables.get("ds.t1")).getIndexName();
+    String t2Index = manager.getIndex(tables.get("ds.t2")).getIndexName();
+
+    assertThat(manager.hasEntityCopies(ImmutableList.of(t1Index), null)).isFalse();
+    assertThat(manager.hasEntityCopies(ImmutableList.of(t1Index, t2Index), null)).isTrue();
+    // the alias of all the values indices
+    assertThat(manager.hasEntityCopies(ImmutableList.of("opal-values"), null)).isTrue();
+  }
+
+  @Test
+  public void test_entity_copies_routed_by_table() {
+    Properties properties = new Properties();
+    properties.setProperty("valuesIndexRouting", "table");
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), properties);
+    List<String> indices = ImmutableList.of("opal-values");
+
+    // one entity document per table, in the shard of the table routing
+    assertThat(manager.hasEntityCopies(indices, manager.getSearchRouting(ImmutableList.of("ds.t1")))).isFalse();
+    assertThat(manager.hasEntityCopies(indices, manager.getSearchRouting(ImmutableList.of("ds.t1", "ds.t2"))))
+        .isTrue();
+    assertThat(manager.hasEntityCopies(indices, null)).isTrue();
+  }
+
+  @Test
+  public void test_routed_by_entity() {
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), new Properties());
+    ESValuesIndexManager.ESValueTableValuesIndex index = (ESValuesIndexManager.ESValueTableValuesIndex) manager
+        .getIndex(createMockTables("ds.t1").get("ds.t1"));
+
+    assertThat(index.getRouting()).isNull();
+    assertThat(index.prepareIndexEntity("Participant", "1").request().routing()).isNull();
+    // routed by parent
+    assertThat(index.prepareIndexValueSet("1", new byte[0]).request().routing()).isEqualTo("1");
+    assertThat(index.prepareIndexValueSet("1", new byte[0]).request().parent()).isEqualTo("1");
+    assertThat(index.prepareDeleteValueSet("1").request().routing()).isEqualTo("1");
+  }
+
+  @Test
+  public void test_routed_by_table() {
+    Properties properties = new Properties();
+    properties.setProperty("valuesIndexRouting", "table");
+    ESValuesIndexManager manager = createManager(createMock(IndexStateStore.class), properties);
+    ESValuesIndexManager.ESValueTableValuesIndex index = (ESValuesIndexManager.ESValueTableValuesIndex) manager
+        .getIndex(createMockTables("ds.t1").get("ds.t1"));
+
+    assertThat(index.getRouting()).isEqualTo("ds.t1");
+    assertThat(index.prepareIndexEntity("Participant", "1").request().routing()).isEqualTo("ds.t1");
+    assertThat(index.prepareIndexValueSet("1", new byte[0]).request().routing()).isEqualTo("ds.t1");
+    assertThat(index.prepareIndexValueSet("1", new byte[0]).request().parent()).isEqualTo("1");
+    assertThat(index.prepareDeleteValueSet("1").request().routing()).isEqualTo("ds.t1");
+  }
+
+  /**
+   * A state store which must be read only once, with the last update of every table.
+   */
+  @SuppressWarnings("unchecked")
+  private IndexStateStore createStateStore() {
+    IndexStateStore store = createMock(IndexStateStore.class);
+    expect(store.getAll(eq("opal-values"), anyObject())).andAnswer(() -> {
+      Map<String, Map<String, Object>> states = Maps.newHashMap();
+      for (String table : (Collection<String>) getCurrentArguments()[1])
+        states.put(table, ImmutableMap.of(IndexStateStore.LAST_UPDATE_FIELD, LAST_UPDATE.toString()));
+      return states;
+    }).once();
+    replay(store);
+    return store;
+  }
+
+  private ESValuesIndexManager createManager(IndexStateStore store, Properties properties) {
+    SearchSettings settings = createMock(SearchSettings.class);
+    expect(settings.getIndexName()).andReturn("opal").anyTimes();
+    MetaData metaData = MetaData.builder().build();
+    IndexMetadataCache cache = createMock(IndexMetadataCache.class);
+    expect(cache.getMetaData()).andReturn(metaData).anyTimes();
+    expect(cache.getTtl()).andReturn(60000L).anyTimes();
+    ESSearchService service = createMockBuilder(ESSearchService.class).withConstructor() //
+        .addMockedMethods("getConfig", "getClient", "getIndexMetadataCache", "getIndexStateStore") //
+        .createMock();
+    expect(service.getConfig()).andReturn(settings).anyTimes();
+    expect(service.getClient()).andReturn(createMockClient()).anyTimes();
+    expect(service.getIndexMetadataCache()).andReturn(cache).anyTimes();
+    expect(service.getIndexStateStore()).andReturn(store).anyTimes();
+    replay(settings, cache, service);
+    service.configure(properties);
+    return (ESValuesIndexManager) service.getValuesIndexManager();
+  }
+
+  /**
+   * A client which only prepares the index and delete requests.
+   */
+  private Client createMockClient() {
+    Client client = createNiceMock(Client.class);
+    expect(client.prepareIndex(anyString(), anyString(), anyString())).andAnswer(
+        () -> new IndexRequestBuilder(client, IndexAction.INSTANCE, (String) getCurrentArguments()[0])
+            .setType((String) getCurrentArguments()[1]).setId((String) getCurrentArguments()[2])).anyTimes();
+    expect(client.prepareDelete(anyString(), anyString(), anyString())).andAnswer(
+        () -> new DeleteRequestBuilder(client, DeleteAction.INSTANCE, (String) getCurrentArguments()[0])
+            .setType((String) getCurrentArguments()[1]).setId((String) getCurrentArguments()[2])).anyTimes();
+    replay(client);
+    return client;
+  }
+
+  private Properties layout(String layout) {
+    Properties properties = new Properties();
+    properties.setProperty("valuesIndexLayout", layout);
+    return properties;
+  }
+
+  /**
+   * Tables by reference, in their own datasources.
+   */
+  private Map<String, ValueTable> createMockTables(String... references) {
+    Map<String, Datasource> datasources = Maps.newHashMap();
+    Map<String, ValueTable> tables = Maps.newLinkedHashMap();
+    for (String reference : references) {
+      String[] names = reference.split("\\.");
+      Datasource datasource = datasources.computeIfAbsent(names[0], name -> {
+        Datasource ds = createMock(Datasource.class);
+        expect(ds.getName()).andReturn(name).anyTimes();
+        replay(ds);
+        return ds;
+      });
+      tables.put(reference, createMockTable(datasource, names[0], names[1], LAST_UPDATE));
+    }
+    return tables;
+  }
+
+  private ValueTable createMockTable(Datasource datasource, String datasourceName, String name, Value lastUpdate) {
+    Timestamps timestamps = createMock(Timestamps.class);
+    expect(timestamps.getLastUpdate()).andReturn(lastUpdate).anyTimes();
+    ValueTable table = createMock(ValueTable.class);
+    expect(table.getName()).andReturn(name).anyTimes();
+    expect(table.getTableReference()).andReturn(datasourceName + "." + name).anyTimes();
+    expect(table.getDatasource()).andReturn(datasource).anyTimes();
+    expect(table.getTimestamps()).andReturn(timestamps).anyTimes();
+    replay(timestamps, table);
+    return table;
+  }
+}
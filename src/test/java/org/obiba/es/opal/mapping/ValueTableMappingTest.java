@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.mapping;
+
+import java.nio.charset.StandardCharsets;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import org.codehaus.jettison.json.JSONObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.junit.Test;
+import org.obiba.es.opal.support.ESMapping;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.ValueType;
+import org.obiba.magma.Variable;
+import org.obiba.magma.type.IntegerType;
+import org.obiba.magma.type.TextType;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+public class ValueTableMappingTest {
+
+  @Test
+  public void test_update_mapping_with_new_fields_only() throws Exception {
+    ValueTable table = createMockTable(createMockVariable("A", TextType.get()), createMockVariable("B", IntegerType.get()));
+    ESMapping mapping = new ESMapping("ValueSet");
+    mapping.meta().setString("ds__table", "2018-01-01");
+    mapping.properties().setProperty(MappingHelper.toFieldName("ds.table", table.getVariable("A")), Maps.newHashMap());
+
+    JSONObject update = toJSON(ValueTableMapping.updateMapping("ValueSet", table, mapping)).getJSONObject("ValueSet");
+
+    JSONObject properties = update.getJSONObject("properties");
+    assertThat(properties.length()).isEqualTo(1);
+    assertThat(properties.has(MappingHelper.toFieldName("ds.table", table.getVariable("B")))).isTrue();
+    assertThat(update.getJSONObject("_parent").getString("type")).isEqualTo("Participant");
+    assertThat(update.getJSONObject("_meta").getString("ds__table")).isEqualTo("2018-01-01");
+  }
+
+  @Test
+  public void test_update_mapping_without_new_fields() throws Exception {
+    ValueTable table = createMockTable(createMockVariable("A", TextType.get()));
+    ESMapping mapping = new ESMapping("ValueSet");
+    mapping.properties().setProperty(MappingHelper.toFieldName("ds.table", table.getVariable("A")), Maps.newHashMap());
+
+    assertThat(ValueTableMapping.updateMapping("ValueSet", table, mapping)).isNull();
+  }
+
+  private JSONObject toJSON(XContentBuilder builder) throws Exception {
+    return new JSONObject(new String(builder.bytes().toBytes(), StandardCharsets.UTF_8));
+  }
+
+  private ValueTable createMockTable(Variable... variables) {
+    ValueTable table = createMock(ValueTable.class);
+    expect(table.getTableReference()).andReturn("ds.table").anyTimes();
+    expect(table.getEntityType()).andReturn("Participant").anyTimes();
+    expect(table.getVariables()).andReturn(ImmutableList.copyOf(variables)).anyTimes();
+    for(Variable variable : variables) {
+      expect(table.getVariable(variable.getName())).andReturn(variable).anyTimes();
+    }
+    replay(table);
+    return table;
+  }
+
+  private Variable createMockVariable(String name, ValueType valueType) {
+    Variable variable = createMock(Variable.class);
+    expect(variable.getName()).andReturn(name).anyTimes();
+    expect(variable.getValueType()).andReturn(valueType).anyTimes();
+    expect(variable.hasCategories()).andReturn(false).anyTimes();
+    replay(variable);
+    return variable;
+  }
+}
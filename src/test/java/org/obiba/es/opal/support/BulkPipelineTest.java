@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+
+public class BulkPipelineTest {
+
+  private static final BulkResponse OK = new BulkResponse(new BulkItemResponse[0], 1);
+
+  // listeners of the bulk requests in flight, completed by the tests
+  private BlockingQueue<ActionListener<BulkResponse>> inFlight;
+
+  private AtomicInteger executed;
+
+  private ElasticsearchClient client;
+
+  @Before
+  @SuppressWarnings("unchecked")
+  public void setUp() {
+    inFlight = new LinkedBlockingQueue<>();
+    executed = new AtomicInteger();
+    client = createNiceMock(ElasticsearchClient.class);
+    client.execute(eq(BulkAction.INSTANCE), anyObject(BulkRequest.class), anyObject());
+    expectLastCall().andAnswer(() -> {
+      executed.incrementAndGet();
+      inFlight.add((ActionListener<BulkResponse>) getCurrentArguments()[2]);
+      return null;
+    }).anyTimes();
+    replay(client);
+  }
+
+  @Test
+  public void test_in_flight_limit() throws InterruptedException {
+    BulkPipeline pipeline = new BulkPipeline(2);
+    CountDownLatch submitted = new CountDownLatch(1);
+    Thread submitter = new Thread(() -> {
+      for (int i = 0; i < 3; i++) pipeline.submit(newBulkRequest());
+      submitted.countDown();
+    });
+    submitter.start();
+
+    // the third request waits for a slot
+    assertThat(submitted.await(200, TimeUnit.MILLISECONDS)).isFalse();
+    assertThat(executed.get()).isEqualTo(2);
+
+    inFlight.take().onResponse(OK);
+    assertThat(submitted.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(executed.get()).isEqualTo(3);
+
+    inFlight.take().onResponse(OK);
+    inFlight.take().onResponse(OK);
+    pipeline.await();
+    assertThat(pipeline.hasFailed()).isFalse();
+  }
+
+  @Test
+  public void test_await_waits_for_in_flight_requests() throws InterruptedException {
+    BulkPipeline pipeline = new BulkPipeline(2);
+    pipeline.submit(newBulkRequest());
+    CountDownLatch awaited = new CountDownLatch(1);
+    new Thread(() -> {
+      pipeline.await();
+      awaited.countDown();
+    }).start();
+
+    assertThat(awaited.await(200, TimeUnit.MILLISECONDS)).isFalse();
+    inFlight.take().onResponse(OK);
+    assertThat(awaited.await(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  public void test_await_rethrows_first_failure() {
+    BulkPipeline pipeline = new BulkPipeline(2);
+    pipeline.submit(newBulkRequest());
+    pipeline.submit(newBulkRequest());
+    inFlight.poll().onFailure(new IllegalStateException("first"));
+    inFlight.poll().onFailure(new IllegalStateException("second"));
+
+    try {
+      pipeline.await();
+      fail("first failure not reported");
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).isEqualTo("first");
+    }
+  }
+
+  @Test
+  public void test_await_wraps_checked_failure() {
+    BulkPipeline pipeline = new BulkPipeline(1);
+    pipeline.submit(newBulkRequest());
+    IOException failure = new IOException("io");
+    inFlight.poll().onFailure(failure);
+
+    try {
+      pipeline.await();
+      fail("failure not reported");
+    } catch (RuntimeException e) {
+      assertThat(e.getCause()).isSameAs(failure);
+    }
+  }
+
+  @Test
+  public void test_failed_pipeline_stops_submitting() {
+    BulkPipeline pipeline = new BulkPipeline(2);
+    pipeline.submit(newBulkRequest());
+    assertThat(pipeline.hasFailed()).isFalse();
+    inFlight.poll().onFailure(new IllegalStateException("failed"));
+
+    // the values readers are cancelled as soon as the pipeline has failed
+    assertThat(pipeline.hasFailed()).isTrue();
+    pipeline.submit(newBulkRequest());
+    assertThat(executed.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_empty_request_not_sent() {
+    BulkPipeline pipeline = new BulkPipeline(2);
+    pipeline.submit(new BulkRequestBuilder(client, BulkAction.INSTANCE));
+    pipeline.await();
+
+    assertThat(executed.get()).isEqualTo(0);
+  }
+
+  private BulkRequestBuilder newBulkRequest() {
+    return new BulkRequestBuilder(client, BulkAction.INSTANCE)
+        .add(new IndexRequest("opal-values", "ValueSet", "1").source("{}"));
+  }
+}
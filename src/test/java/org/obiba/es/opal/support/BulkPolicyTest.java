@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BulkPolicyTest {
+
+  @Test
+  public void test_empty_bulk_is_never_full() {
+    BulkPolicy policy = new BulkPolicy(1, 1, 1);
+    assertThat(policy.isFull(0, 1000, 1000)).isFalse();
+  }
+
+  @Test
+  public void test_full_on_first_reached_threshold() {
+    BulkPolicy policy = new BulkPolicy(100, 1024, 5000);
+    assertThat(policy.isFull(10, 512, 10)).isFalse();
+    assertThat(policy.isFull(100, 512, 10)).isTrue();
+    assertThat(policy.isFull(10, 1024, 10)).isTrue();
+    assertThat(policy.isFull(10, 512, 5000)).isTrue();
+  }
+
+  @Test
+  public void test_disabled_thresholds() {
+    BulkPolicy policy = new BulkPolicy(0, 0, 0);
+    assertThat(policy.isFull(100000, Long.MAX_VALUE, Long.MAX_VALUE)).isFalse();
+  }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.obiba.es.opal.ESSearchService;
+import org.obiba.opal.spi.search.QuerySettings;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createMockBuilder;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+public class ESQueryExecutorTest {
+
+  private static final int DOCUMENTS = 25;
+
+  // documents also indexed in the copy index
+  private static final int COPIES = 10;
+
+  private static Path home;
+
+  private static Node node;
+
+  private static Client client;
+
+  @BeforeClass
+  public static void startNode() throws IOException {
+    home = Files.createTempDirectory("es-scroll");
+    node = NodeBuilder.nodeBuilder().local(true).clusterName("scroll") //
+        .settings(Settings.settingsBuilder().put("path.home", home.toString()).put("http.enabled", false)) //
+        .node();
+    client = node.client();
+    client.admin().indices().prepareCreate("opal-values")
+        .setSettings(Settings.settingsBuilder().put("number_of_shards", 2).put("number_of_replicas", 0)) //
+        .execute().actionGet();
+    BulkRequestBuilder bulk = client.prepareBulk();
+    for (int i = 0; i < DOCUMENTS; i++)
+      bulk.add(client.prepareIndex("opal-values", "ValueSet", "" + i).setSource("{\"identifier\":\"" + i + "\"}"));
+    assertThat(bulk.setRefresh(true).execute().actionGet().hasFailures()).isFalse();
+    bulk = client.prepareBulk();
+    for (int i = 0; i < COPIES; i++)
+      bulk.add(client.prepareIndex("opal-values-copy", "ValueSet", "" + i).setSource("{\"identifier\":\"" + i + "\"}"));
+    assertThat(bulk.setRefresh(true).execute().actionGet().hasFailures()).isFalse();
+  }
+
+  @AfterClass
+  public static void stopNode() {
+    if (node != null) node.close();
+  }
+
+  @Test
+  public void test_scroll_skip_and_limit() {
+    AtomicLong total = new AtomicLong();
+    List<String> ids = Lists.newArrayList();
+    // pages smaller than the skipped hits and than the limit
+    createExecutor().scroll(querySettings(5, 10), 3, total::set, hit -> ids.add(hit.getId()));
+
+    assertThat(total.get()).isEqualTo(DOCUMENTS);
+    assertThat(ids).hasSize(10).doesNotHaveDuplicates();
+  }
+
+  @Test
+  public void test_scroll_all() {
+    List<String> ids = Lists.newArrayList();
+    createExecutor().scroll(querySettings(0, 100), 4, total -> {}, hit -> ids.add(hit.getId()));
+
+    assertThat(ids).hasSize(DOCUMENTS).doesNotHaveDuplicates();
+  }
+
+  @Test
+  public void test_scroll_skip_all() {
+    List<String> ids = Lists.newArrayList();
+    createExecutor().scroll(querySettings(DOCUMENTS, 10), 4, total -> {}, hit -> ids.add(hit.getId()));
+
+    assertThat(ids).isEmpty();
+  }
+
+  @Test
+  public void test_scroll_interrupted() {
+    List<String> ids = Lists.newArrayList();
+    Thread.currentThread().interrupt();
+    try {
+      createExecutor().scroll(querySettings(0, 100), 4, total -> {}, hit -> ids.add(hit.getId()));
+      assertThat(Thread.currentThread().isInterrupted()).isTrue();
+    } finally {
+      Thread.interrupted();
+    }
+    assertThat(ids).isEmpty();
+  }
+
+  @Test
+  public void test_search_distinct_copies() {
+    SearchHits hits = createExecutor().setIndices(ImmutableList.of("opal-values", "opal-values-copy"))
+        .searchDistinct(querySettings(0, 100), 4);
+
+    assertThat(hits.getTotalHits()).isEqualTo(DOCUMENTS);
+    assertThat(ids(hits)).hasSize(DOCUMENTS).doesNotHaveDuplicates();
+  }
+
+  @Test
+  public void test_search_distinct_skip_and_limit() {
+    List<String> ids = Lists.newArrayList();
+    // the pages of distinct hits do not overlap
+    for (int from = 0; from < DOCUMENTS; from += 10) {
+      SearchHits hits = createExecutor().setIndices(ImmutableList.of("opal-values", "opal-values-copy"))
+          .searchDistinct(querySettings(from, 10), 4);
+      assertThat(hits.getTotalHits()).isEqualTo(DOCUMENTS);
+      ids.addAll(ids(hits));
+    }
+
+    assertThat(ids).hasSize(DOCUMENTS).doesNotHaveDuplicates();
+  }
+
+  @Test
+  public void test_search_distinct_routed_copies() {
+    client.admin().indices().prepareCreate("opal-routed")
+        .setSettings(Settings.settingsBuilder().put("number_of_shards", 3).put("number_of_replicas", 0)) //
+        .execute().actionGet();
+    BulkRequestBuilder bulk = client.prepareBulk();
+    // the same documents of two tables, routed by table
+    for (String table : ImmutableList.of("ds.t1", "ds.t2")) {
+      for (int i = 0; i < COPIES; i++)
+        bulk.add(client.prepareIndex("opal-routed", "ValueSet", "" + i).setRouting(table).setSource("{}"));
+    }
+    assertThat(bulk.setRefresh(true).execute().actionGet().hasFailures()).isFalse();
+
+    SearchHits hits = createExecutor().setIndices(ImmutableList.of("opal-routed"))
+        .setRoutings(ImmutableList.of("ds.t1", "ds.t2")).searchDistinct(querySettings(0, 100), 4);
+
+    assertThat(hits.getTotalHits()).isEqualTo(COPIES);
+    assertThat(ids(hits)).hasSize(COPIES).doesNotHaveDuplicates();
+  }
+
+  private List<String> ids(SearchHits hits) {
+    List<String> ids = Lists.newArrayList();
+    for (SearchHit hit : hits) ids.add(hit.getId());
+    return ids;
+  }
+
+  private ESQueryExecutor createExecutor() {
+    ESSearchService service = createMockBuilder(ESSearchService.class).addMockedMethods("getClient").createMock();
+    expect(service.getClient()).andReturn(client).anyTimes();
+    replay(service);
+    return new ESQueryExecutor(service).setSearchPath("opal-values/ValueSet");
+  }
+
+  private QuerySettings querySettings(int from, int size) {
+    QuerySettings querySettings = createNiceMock(QuerySettings.class);
+    expect(querySettings.getQuery()).andReturn("*").anyTimes();
+    expect(querySettings.getFrom()).andReturn(from).anyTimes();
+    expect(querySettings.getSize()).andReturn(size).anyTimes();
+    replay(querySettings);
+    return querySettings;
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.obiba.es.opal.ESSearchService;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.type.DateTimeType;
+import org.obiba.opal.spi.search.SearchSettings;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createMockBuilder;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+public class IndexStateStoreTest {
+
+  private static final String LAST_UPDATE = DateTimeType.get().valueOf(new Date(1500000000000L)).toString();
+
+  private static Path home;
+
+  private static Node node;
+
+  private static Client client;
+
+  private IndexMetadataCache indexMetadataCache;
+
+  private IndexStateStore store;
+
+  @BeforeClass
+  public static void startNode() throws IOException {
+    home = Files.createTempDirectory("es-state");
+    node = NodeBuilder.nodeBuilder().local(true).clusterName("state") //
+        .settings(Settings.settingsBuilder().put("path.home", home.toString()).put("http.enabled", false)) //
+        .node();
+    client = node.client();
+  }
+
+  @AfterClass
+  public static void stopNode() {
+    if (node != null) node.close();
+  }
+
+  @Before
+  public void setUp() {
+    client.admin().indices().prepareDelete("_all").execute().actionGet();
+    indexMetadataCache = new IndexMetadataCache(client, 0, IndexMetadataCache.DEFAULT_MAX_MAPPINGS_SIZE);
+    store = new IndexStateStore(client, "opal-state", indexMetadataCache);
+  }
+
+  @Test
+  public void test_no_state() {
+    assertThat(store.get("opal-values", "ds__t1")).isEmpty();
+    assertThat(store.getAll("opal-values", ImmutableList.of("ds__t1"))).containsOnlyKeys("ds__t1");
+    assertThat(store.getAll("opal-values", ImmutableList.of("ds__t1")).get("ds__t1")).isEmpty();
+  }
+
+  @Test
+  public void test_update() {
+    store.update("opal-values", "ds__t1", ImmutableMap.of(IndexStateStore.LAST_UPDATE_FIELD, LAST_UPDATE,
+        IndexStateStore.DOCUMENTS_FIELD, 10));
+    Map<String, Object> fields = Maps.newHashMap();
+    fields.put(IndexStateStore.LAST_UPDATE_FIELD, null);
+    fields.put(IndexStateStore.DOCUMENTS_FIELD, 20);
+    store.update("opal-values", "ds__t1", fields);
+
+    Map<String, Object> state = store.get("opal-values", "ds__t1");
+    assertThat(state.get(IndexStateStore.LAST_UPDATE_FIELD)).isNull();
+    assertThat(state.get(IndexStateStore.DOCUMENTS_FIELD)).isEqualTo(20);
+    assertThat(state.get(IndexStateStore.MANAGER_FIELD)).isEqualTo("opal-values");
+    assertThat(state.get(IndexStateStore.TABLE_FIELD)).isEqualTo("ds__t1");
+  }
+
+  @Test
+  public void test_get_all() {
+    store.update("opal-values", "ds__t1", ImmutableMap.of(IndexStateStore.DOCUMENTS_FIELD, 1));
+    store.update("opal-values", "ds__t2", ImmutableMap.of(IndexStateStore.DOCUMENTS_FIELD, 2));
+    store.update("opal-variables", "ds__t1", ImmutableMap.of(IndexStateStore.DOCUMENTS_FIELD, 3));
+
+    Map<String, Map<String, Object>> states = store.getAll("opal-values", ImmutableList.of("ds__t1", "ds__t2", "ds__t3"));
+
+    assertThat(states).containsOnlyKeys("ds__t1", "ds__t2", "ds__t3");
+    assertThat(states.get("ds__t1").get(IndexStateStore.DOCUMENTS_FIELD)).isEqualTo(1);
+    assertThat(states.get("ds__t2").get(IndexStateStore.DOCUMENTS_FIELD)).isEqualTo(2);
+    assertThat(states.get("ds__t3")).isEmpty();
+  }
+
+  @Test
+  public void test_delete() {
+    store.update("opal-values", "ds__t1", ImmutableMap.of(IndexStateStore.DOCUMENTS_FIELD, 1));
+    store.update("opal-values", "ds__t2", ImmutableMap.of(IndexStateStore.DOCUMENTS_FIELD, 2));
+
+    store.delete("opal-values", "ds__t1");
+    store.delete("opal-values", "ds__t3");
+
+    assertThat(store.get("opal-values", "ds__t1")).isEmpty();
+    assertThat(store.get("opal-values", "ds__t2")).isNotEmpty();
+  }
+
+  @Test
+  public void test_delete_all() {
+    store.update("opal-values", "ds__t1", ImmutableMap.of(IndexStateStore.DOCUMENTS_FIELD, 1));
+    store.update("opal-values", "ds__t2", ImmutableMap.of(IndexStateStore.DOCUMENTS_FIELD, 2));
+    store.update("opal-variables", "ds__t1", ImmutableMap.of(IndexStateStore.DOCUMENTS_FIELD, 3));
+
+    store.deleteAll("opal-values");
+
+    assertThat(store.get("opal-values", "ds__t1")).isEmpty();
+    assertThat(store.get("opal-values", "ds__t2")).isEmpty();
+    assertThat(store.get("opal-variables", "ds__t1")).isNotEmpty();
+  }
+
+  @Test
+  public void test_legacy_mapping_meta() throws IOException {
+    // the previous versions kept the timestamps in the mapping meta data of the values index
+    client.admin().indices().prepareCreate("opal-values") //
+        .addMapping("ValueSet", XContentFactory.jsonBuilder().startObject().startObject("ValueSet") //
+            .startObject("_meta").field("ds__t1", LAST_UPDATE).endObject() //
+            .endObject().endObject()) //
+        .execute().actionGet();
+    ESIndexManager manager = createValuesManager(new Properties());
+    ValueTable table = createMockTable();
+
+    assertThat(manager.hasIndex(table)).isTrue();
+    assertThat(manager.getIndex(table).getTimestamps().getLastUpdate().toString()).isEqualTo(LAST_UPDATE);
+  }
+
+  @Test
+  public void test_generation_aborted() {
+    Properties properties = new Properties();
+    properties.setProperty("valuesIndexLayout", "table");
+    ESIndexManager.ESValueTableIndex index = (ESIndexManager.ESValueTableIndex) createValuesManager(properties)
+        .getIndex(createMockTable());
+    store.update("opal-values", "ds__t1", ImmutableMap.of(IndexStateStore.LAST_UPDATE_FIELD, LAST_UPDATE));
+
+    index.beginGeneration();
+    String generation = index.getWriteIndexName();
+    // not indexed until the generation is committed
+    assertThat(store.get("opal-values", "ds__t1").get(IndexStateStore.LAST_UPDATE_FIELD)).isNull();
+    assertThat(store.get("opal-values", "ds__t1").get(IndexStateStore.GENERATION_FIELD)).isEqualTo(generation);
+
+    index.abortGeneration();
+    assertThat(store.get("opal-values", "ds__t1").get(IndexStateStore.LAST_UPDATE_FIELD)).isEqualTo(LAST_UPDATE);
+    assertThat(store.get("opal-values", "ds__t1").get(IndexStateStore.GENERATION_FIELD)).isNull();
+  }
+
+  @Test
+  public void test_generation_suspended() {
+    Properties properties = new Properties();
+    properties.setProperty("valuesIndexLayout", "table");
+    ESIndexManager.ESValueTableIndex index = (ESIndexManager.ESValueTableIndex) createValuesManager(properties)
+        .getIndex(createMockTable());
+
+    index.beginGeneration();
+    String generation = index.getWriteIndexName();
+    client.admin().indices().prepareCreate(generation).execute().actionGet();
+    indexMetadataCache.invalidate();
+    index.suspendGeneration();
+    assertThat(index.getWriteIndexName()).isNotEqualTo(generation);
+    assertThat(index.getSuspendedGeneration()).isEqualTo(generation);
+
+    // not resumed: the leftover generation is dropped
+    index.beginGeneration();
+    assertThat(client.admin().indices().prepareExists(generation).execute().actionGet().isExists()).isFalse();
+    assertThat(store.get("opal-values", "ds__t1").get(IndexStateStore.GENERATION_FIELD))
+        .isEqualTo(index.getWriteIndexName());
+    index.abortGeneration();
+    assertThat(index.getSuspendedGeneration()).isNull();
+  }
+
+  private ESIndexManager createValuesManager(Properties properties) {
+    SearchSettings settings = createMock(SearchSettings.class);
+    expect(settings.getIndexName()).andReturn("opal").anyTimes();
+    ESSearchService service = createMockBuilder(ESSearchService.class).withConstructor() //
+        .addMockedMethods("getConfig", "getClient", "getIndexMetadataCache", "getIndexStateStore") //
+        .createMock();
+    expect(service.getConfig()).andReturn(settings).anyTimes();
+    expect(service.getClient()).andReturn(client).anyTimes();
+    expect(service.getIndexMetadataCache()).andReturn(indexMetadataCache).anyTimes();
+    expect(service.getIndexStateStore()).andReturn(store).anyTimes();
+    replay(settings, service);
+    service.configure(properties);
+    return (ESIndexManager) service.getValuesIndexManager();
+  }
+
+  private ValueTable createMockTable() {
+    Datasource datasource = createMock(Datasource.class);
+    ValueTable table = createMock(ValueTable.class);
+    expect(datasource.getName()).andReturn("ds").anyTimes();
+    expect(datasource.getValueTables()).andReturn(ImmutableSet.of(table)).anyTimes();
+    expect(table.getName()).andReturn("t1").anyTimes();
+    expect(table.getTableReference()).andReturn("ds.t1").anyTimes();
+    expect(table.getDatasource()).andReturn(datasource).anyTimes();
+    replay(datasource, table);
+    return table;
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IndexSyncCoordinatorTest {
+
+  @Test
+  public void test_admitted_by_priority_then_size() throws Exception {
+    IndexSyncCoordinator coordinator = new IndexSyncCoordinator(1, 0, 0, 0);
+    IndexSyncCoordinator.Ticket running = coordinator.admit("ds.running", 0, 10, () -> false);
+    List<String> admitted = Collections.synchronizedList(Lists.newArrayList());
+
+    List<Thread> threads = Lists.newArrayList(admitLater(coordinator, "ds.large", 0, 1000, admitted, 1),
+        admitLater(coordinator, "ds.small", 0, 10, admitted, 2),
+        admitLater(coordinator, "ds.prioritized", 1, 100000, admitted, 3));
+    coordinator.release(running);
+    for (Thread thread : threads) thread.join(5000);
+
+    assertThat(admitted).containsExactly("ds.prioritized", "ds.small", "ds.large");
+  }
+
+  @Test
+  public void test_admitted_after_max_wait() throws Exception {
+    IndexSyncCoordinator coordinator = new IndexSyncCoordinator(1, 0, 0, 200);
+    IndexSyncCoordinator.Ticket running = coordinator.admit("ds.running", 0, 10, () -> false);
+    List<String> admitted = Collections.synchronizedList(Lists.newArrayList());
+
+    Thread large = admitLater(coordinator, "ds.large", 0, 1000, admitted, 1);
+    Thread.sleep(300);
+    Thread small = admitLater(coordinator, "ds.small", 0, 10, admitted, 2);
+    coordinator.release(running);
+    large.join(5000);
+    small.join(5000);
+
+    assertThat(admitted).containsExactly("ds.large", "ds.small");
+  }
+
+  @Test
+  public void test_concurrent_syncs() {
+    IndexSyncCoordinator coordinator = new IndexSyncCoordinator(2, 0, 0, 0);
+    IndexSyncCoordinator.Ticket first = coordinator.admit("ds.t1", 0, 10, () -> false);
+    IndexSyncCoordinator.Ticket second = coordinator.admit("ds.t2", 0, 10, () -> false);
+
+    assertThat(first).isNotNull();
+    assertThat(second).isNotNull();
+    // no slot left until one is released
+    assertThat(coordinator.admit("ds.t3", 0, 10, () -> true)).isNull();
+    assertThat(coordinator.getWaiting()).isEqualTo(0);
+    coordinator.release(first);
+    assertThat(coordinator.admit("ds.t3", 0, 10, () -> true)).isNotNull();
+  }
+
+  @Test
+  public void test_throttle_docs() {
+    IndexSyncCoordinator coordinator = new IndexSyncCoordinator(0, 100, 0, 0);
+    long start = System.currentTimeMillis();
+    // the first permits are given at once, the next ones wait for them to be paid back
+    coordinator.throttle(50, 0);
+    coordinator.throttle(50, 0);
+    coordinator.throttle(1, 0);
+
+    assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(800);
+  }
+
+  @Test
+  public void test_throttle_bytes() {
+    IndexSyncCoordinator coordinator = new IndexSyncCoordinator(0, 0, 1000, 0);
+    long start = System.currentTimeMillis();
+    coordinator.throttle(1, 500);
+    coordinator.throttle(1, 1);
+
+    assertThat(System.currentTimeMillis() - start).isGreaterThanOrEqualTo(400);
+  }
+
+  @Test
+  public void test_no_throttle() {
+    IndexSyncCoordinator coordinator = new IndexSyncCoordinator(0, 0, 0, 0);
+    long start = System.currentTimeMillis();
+    for (int i = 0; i < 100; i++) coordinator.throttle(1000, 1024 * 1024);
+
+    assertThat(System.currentTimeMillis() - start).isLessThan(400);
+  }
+
+  /**
+   * Start the admission of a synchronization in another thread, and wait for it to be waiting.
+   */
+  private Thread admitLater(IndexSyncCoordinator coordinator, String reference, int priority, long size,
+      List<String> admitted, int waiting) throws InterruptedException {
+    Thread thread = new Thread(() -> {
+      IndexSyncCoordinator.Ticket ticket = coordinator.admit(reference, priority, size, () -> false);
+      admitted.add(ticket.getReference());
+      coordinator.release(ticket);
+    });
+    thread.start();
+    long timeout = System.currentTimeMillis() + 5000;
+    while (coordinator.getWaiting() < waiting && System.currentTimeMillis() < timeout) Thread.sleep(10);
+    return thread;
+  }
+}
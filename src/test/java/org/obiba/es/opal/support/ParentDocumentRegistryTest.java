@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.obiba.es.opal.ESSearchService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createMockBuilder;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+public class ParentDocumentRegistryTest {
+
+  private static Path home;
+
+  private static Node node;
+
+  private static Client client;
+
+  private ParentDocumentRegistry registry;
+
+  @BeforeClass
+  public static void startNode() throws IOException {
+    home = Files.createTempDirectory("es-parents");
+    node = NodeBuilder.nodeBuilder().local(true).clusterName("parents") //
+        .settings(Settings.settingsBuilder().put("path.home", home.toString()).put("http.enabled", false)) //
+        .node();
+    client = node.client();
+    client.prepareIndex("opal-values", "Participant", "1").setSource("{}").setRefresh(true).execute().actionGet();
+  }
+
+  @AfterClass
+  public static void stopNode() {
+    if (node != null) node.close();
+  }
+
+  @Before
+  public void setUp() {
+    ESSearchService service = createMockBuilder(ESSearchService.class).addMockedMethods("getClient").createMock();
+    expect(service.getClient()).andReturn(client).anyTimes();
+    replay(service);
+    registry = new ParentDocumentRegistry(service);
+  }
+
+  @Test
+  public void test_loaded_from_index() {
+    ParentDocumentRegistry.Registration parents = registry.newRegistration("opal-values", "Participant", null);
+
+    assertThat(parents.register("1")).isFalse();
+    assertThat(parents.register("2")).isTrue();
+    assertThat(parents.register("2")).isFalse();
+  }
+
+  @Test
+  public void test_committed_parents_shared() {
+    ParentDocumentRegistry.Registration sync1 = registry.newRegistration("opal-values", "Participant", null);
+    ParentDocumentRegistry.Registration sync2 = registry.newRegistration("opal-values", "Participant", null);
+
+    assertThat(sync1.register("2")).isTrue();
+    sync1.commit();
+    assertThat(sync2.register("2")).isFalse();
+    assertThat(registry.newRegistration("opal-values", "Participant", null).register("2")).isFalse();
+  }
+
+  @Test
+  public void test_routed_parents_not_shared() {
+    ParentDocumentRegistry.Registration sync1 = registry.newRegistration("opal-values", "Participant", "ds.t1");
+    assertThat(sync1.register("2")).isTrue();
+    sync1.commit();
+
+    assertThat(registry.newRegistration("opal-values", "Participant", "ds.t2").register("2")).isTrue();
+  }
+
+  @Test
+  public void test_concurrent_syncs_one_failing() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    CountDownLatch registered = new CountDownLatch(2);
+    try {
+      // both synchronizations register the same parents at the same time
+      Future<ParentDocumentRegistry.Registration> failing = executor.submit(() -> register(registered));
+      Future<ParentDocumentRegistry.Registration> succeeding = executor.submit(() -> register(registered));
+      failing.get(5, TimeUnit.SECONDS);
+      ParentDocumentRegistry.Registration succeeded = succeeding.get(5, TimeUnit.SECONDS);
+
+      // each synchronization indexes its own parents, the failing one does not commit them
+      assertThat(registry.newRegistration("opal-values", "Participant", null).register("2")).isTrue();
+
+      succeeded.commit();
+      assertThat(registry.newRegistration("opal-values", "Participant", null).register("2")).isFalse();
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Register some parents of a synchronization, once the other one has started.
+   */
+  private ParentDocumentRegistry.Registration register(CountDownLatch registered) throws InterruptedException {
+    ParentDocumentRegistry.Registration parents = registry.newRegistration("opal-values", "Participant", null);
+    registered.countDown();
+    assertThat(registered.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(parents.register("2")).isTrue();
+    assertThat(parents.register("3")).isTrue();
+    return parents;
+  }
+}
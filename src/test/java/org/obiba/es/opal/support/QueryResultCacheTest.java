@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.obiba.opal.spi.search.QuerySettings;
+import org.obiba.opal.web.model.Search;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+public class QueryResultCacheTest {
+
+  private static final String PATH = "opal-values/ValueSet";
+
+  @Test
+  public void test_cached_by_normalised_settings() {
+    QueryResultCache cache = new QueryResultCache(QueryResultCache.DEFAULT_MAX_SIZE, QueryResultCache.DEFAULT_TTL);
+    cache.get("query", mockSettings("*", "ds.t1", "ds.t2"), PATH, () -> result(1));
+    Search.QueryResultDto cached = cache.get("query", mockSettings("*", "ds.t2", "ds.t1"), PATH, () -> result(2));
+
+    assertThat(cached.getTotalHits()).isEqualTo(1);
+    assertThat(cache.getStats().hitCount()).isEqualTo(1);
+    assertThat(cache.getStats().missCount()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_invalidate_table() {
+    QueryResultCache cache = new QueryResultCache(QueryResultCache.DEFAULT_MAX_SIZE, QueryResultCache.DEFAULT_TTL);
+    cache.get("query", mockSettings("*", "ds.t1"), PATH, () -> result(1));
+    cache.get("query", mockSettings("*", "ds.t2"), PATH, () -> result(2));
+    cache.get("query", mockSettings("*"), PATH, () -> result(3));
+
+    cache.invalidate("ds.t1");
+
+    assertThat(cache.<Search.QueryResultDto>getIfPresent("query", mockSettings("*", "ds.t1"), PATH)).isNull();
+    assertThat(cache.<Search.QueryResultDto>getIfPresent("query", mockSettings("*", "ds.t2"), PATH)).isNotNull();
+    // not filtered on tables, so possibly involving the invalidated one
+    assertThat(cache.<Search.QueryResultDto>getIfPresent("query", mockSettings("*"), PATH)).isNull();
+  }
+
+  @Test
+  public void test_result_loaded_during_invalidation_not_cached() {
+    QueryResultCache cache = new QueryResultCache(QueryResultCache.DEFAULT_MAX_SIZE, QueryResultCache.DEFAULT_TTL);
+    long since = cache.getGeneration();
+    cache.invalidate("ds.t1");
+    cache.put("query", mockSettings("*", "ds.t1"), PATH, since, result(1));
+
+    assertThat(cache.<Search.QueryResultDto>getIfPresent("query", mockSettings("*", "ds.t1"), PATH)).isNull();
+  }
+
+  @Test
+  public void test_disabled() {
+    QueryResultCache cache = new QueryResultCache(0, QueryResultCache.DEFAULT_TTL);
+    cache.get("query", mockSettings("*"), PATH, () -> result(1));
+
+    assertThat(cache.get("query", mockSettings("*"), PATH, () -> result(2)).getTotalHits()).isEqualTo(2);
+  }
+
+  private QuerySettings mockSettings(String query, String... references) {
+    QuerySettings querySettings = createNiceMock(QuerySettings.class);
+    expect(querySettings.getQuery()).andReturn(query).anyTimes();
+    expect(querySettings.hasFilterReferences()).andReturn(references.length > 0).anyTimes();
+    expect(querySettings.getFilterReferences()).andReturn(Arrays.asList(references)).anyTimes();
+    expect(querySettings.getSize()).andReturn(10).anyTimes();
+    replay(querySettings);
+    return querySettings;
+  }
+
+  private Search.QueryResultDto result(int total) {
+    return Search.QueryResultDto.newBuilder().setTotalHits(total).build();
+  }
+}
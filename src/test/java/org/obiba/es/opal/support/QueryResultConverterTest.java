@@ -13,10 +13,22 @@ import java.util.List;
 
 import org.codehaus.jettison.json.JSONException;
 import org.codehaus.jettison.json.JSONObject;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.aggregations.Aggregation;
+import org.elasticsearch.search.aggregations.Aggregations;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.stats.extended.ExtendedStats;
 import org.junit.Test;
 import org.obiba.opal.web.model.Search;
 
+import com.google.common.collect.Lists;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
 
 
 public class QueryResultConverterTest {
@@ -246,6 +258,50 @@ public class QueryResultConverterTest {
     validatePercentilesQueryResultDto(dtoResult);
   }
 
+  @Test
+  public void test_convert_categorical_response() {
+    Terms.Bucket bucket1 = createMock(Terms.Bucket.class);
+    expect(bucket1.getKeyAsString()).andReturn("2").anyTimes();
+    expect(bucket1.getDocCount()).andReturn(4916L).anyTimes();
+    Terms.Bucket bucket2 = createMock(Terms.Bucket.class);
+    expect(bucket2.getKeyAsString()).andReturn("1").anyTimes();
+    expect(bucket2.getDocCount()).andReturn(3137L).anyTimes();
+    Terms terms = createMock(Terms.class);
+    expect(terms.getName()).andReturn("0").anyTimes();
+    expect(terms.getBuckets()).andReturn(Lists.newArrayList(bucket1, bucket2)).anyTimes();
+    replay(bucket1, bucket2, terms);
+
+    QueryResultConverter converter = new QueryResultConverter();
+    Search.QueryResultDto dtoResult = converter.convert(mockResponse(8053, terms));
+
+    validateCategoricalQueryResultDto(dtoResult);
+  }
+
+  @Test
+  public void test_convert_statistical_response_without_values() {
+    ExtendedStats stats = createMock(ExtendedStats.class);
+    expect(stats.getName()).andReturn("0").anyTimes();
+    expect(stats.getCount()).andReturn(0L).anyTimes();
+    expect(stats.getSum()).andReturn(0.0).anyTimes();
+    expect(stats.getMin()).andReturn(Double.POSITIVE_INFINITY).anyTimes();
+    expect(stats.getMax()).andReturn(Double.NEGATIVE_INFINITY).anyTimes();
+    expect(stats.getAvg()).andReturn(Double.NaN).anyTimes();
+    expect(stats.getSumOfSquares()).andReturn(0.0).anyTimes();
+    expect(stats.getVariance()).andReturn(Double.NaN).anyTimes();
+    expect(stats.getStdDeviation()).andReturn(Double.NaN).anyTimes();
+    replay(stats);
+
+    QueryResultConverter converter = new QueryResultConverter();
+    Search.QueryResultDto dtoResult = converter.convert(mockResponse(0, stats));
+
+    Search.FacetResultDto.StatisticalResultDto statistics = dtoResult.getFacets(0).getStatistics();
+    assertThat(statistics.getCount()).isEqualTo(0);
+    assertThat(statistics.getMin()).isEqualTo(0f);
+    assertThat(statistics.getMax()).isEqualTo(0f);
+    assertThat(statistics.getMean()).isEqualTo(0f);
+    assertThat(statistics.getStdDeviation()).isEqualTo(0f);
+  }
+
   @Test(expected = JSONException.class)
   public void testConvert_InvalidJsonQuery() throws Exception {
     // missing a colon
@@ -256,6 +312,19 @@ public class QueryResultConverterTest {
     new QueryResultConverter().convert(jsonQuery);
   }
 
+  private SearchResponse mockResponse(long total, Aggregation aggregation) {
+    SearchHits hits = createMock(SearchHits.class);
+    expect(hits.getTotalHits()).andReturn(total).anyTimes();
+    expect(hits.getHits()).andReturn(new SearchHit[0]).anyTimes();
+    Aggregations aggregations = createMock(Aggregations.class);
+    expect(aggregations.iterator()).andReturn(Lists.newArrayList(aggregation).iterator());
+    SearchResponse response = createMock(SearchResponse.class);
+    expect(response.getHits()).andReturn(hits).anyTimes();
+    expect(response.getAggregations()).andReturn(aggregations).anyTimes();
+    replay(hits, aggregations, response);
+    return response;
+  }
+
   private void validateCategoricalQueryResultDto(Search.QueryResultDto dtoResult) {
     assertThat(dtoResult).isNotNull();
 
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.List;
+
+import org.codehaus.jettison.json.JSONArray;
+import org.codehaus.jettison.json.JSONException;
+import org.codehaus.jettison.json.JSONObject;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.junit.Test;
+import org.obiba.opal.spi.search.QuerySettings;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+public class SearchQueryBuilderTest {
+
+  @Test
+  public void test_query_string() throws JSONException {
+    QuerySettings querySettings = createNiceMock(QuerySettings.class);
+    expect(querySettings.getQuery()).andReturn("name:AGE*").anyTimes();
+    expect(querySettings.getFrom()).andReturn(20).anyTimes();
+    expect(querySettings.getSize()).andReturn(10).anyTimes();
+    replay(querySettings);
+
+    JSONObject request = build(querySettings);
+
+    JSONObject queryString = request.getJSONObject("query").getJSONObject("query_string");
+    assertThat(queryString.getString("query")).isEqualTo("name:AGE*");
+    assertThat(queryString.has("default_operator")).isTrue();
+    assertThat(request.getInt("from")).isEqualTo(20);
+    assertThat(request.getInt("size")).isEqualTo(10);
+    assertThat(request.has("sort")).isFalse();
+    assertThat(request.has("post_filter")).isFalse();
+  }
+
+  @Test
+  public void test_has_child_queries() throws JSONException {
+    assertThat(hasChildQueries(build(childQueries("must")).getJSONObject("query"), "must")).hasSize(2);
+    assertThat(hasChildQueries(build(childQueries("should")).getJSONObject("query"), "should")).hasSize(2);
+    assertThat(hasChildQueries(build(childQueries("must_not")).getJSONObject("query"), "must_not")).hasSize(2);
+    // unknown operator
+    assertThat(hasChildQueries(build(childQueries("any")).getJSONObject("query"), "must")).hasSize(2);
+
+    JSONObject hasChild = hasChildQueries(build(childQueries("must")).getJSONObject("query"), "must").get(0);
+    assertThat(hasChild.getString("child_type")).isEqualTo("ValueSet");
+    assertThat(hasChild.getJSONObject("query").getJSONObject("query_string").getString("query")).isEqualTo("a:1");
+  }
+
+  @Test
+  public void test_sort() throws JSONException {
+    QuerySettings querySettings = createNiceMock(QuerySettings.class);
+    expect(querySettings.getQuery()).andReturn("*").anyTimes();
+    expect(querySettings.hasSort()).andReturn(true).anyTimes();
+    expect(querySettings.getSort()).andReturn(ImmutableList.of("name", "label:desc", "index:unknown")).anyTimes();
+    replay(querySettings);
+
+    JSONArray sort = build(querySettings).getJSONArray("sort");
+
+    assertThat(sort.length()).isEqualTo(2);
+    assertThat(sort.getJSONObject(0).getJSONObject("name").getString("order")).isEqualTo("asc");
+    assertThat(sort.getJSONObject(1).getJSONObject("label").getString("order")).isEqualTo("desc");
+  }
+
+  @Test
+  public void test_fields_and_post_filter() throws JSONException {
+    QuerySettings querySettings = createNiceMock(QuerySettings.class);
+    expect(querySettings.getQuery()).andReturn("*").anyTimes();
+    expect(querySettings.hasFields()).andReturn(true).anyTimes();
+    expect(querySettings.getFields()).andReturn(ImmutableList.of("name", "label")).anyTimes();
+    expect(querySettings.hasFilterReferences()).andReturn(true).anyTimes();
+    expect(querySettings.getFilterReferences()).andReturn(ImmutableList.of("ds.t1", "ds.t2")).anyTimes();
+    replay(querySettings);
+
+    JSONObject request = build(querySettings);
+
+    JSONArray includes = request.getJSONObject("_source").getJSONArray("includes");
+    assertThat(includes.length()).isEqualTo(2);
+    assertThat(includes.getString(0)).isEqualTo("name");
+    JSONArray references = request.getJSONObject("post_filter").getJSONObject("terms").getJSONArray("reference");
+    assertThat(references.length()).isEqualTo(2);
+    assertThat(references.getString(1)).isEqualTo("ds.t2");
+  }
+
+  @Test
+  public void test_facets_not_requested() throws JSONException {
+    QuerySettings querySettings = createNiceMock(QuerySettings.class);
+    expect(querySettings.getQuery()).andReturn("*").anyTimes();
+    expect(querySettings.hasFacets()).andReturn(true).anyTimes();
+    expect(querySettings.getFacets()).andReturn(ImmutableList.of("category:5")).anyTimes();
+    replay(querySettings);
+
+    JSONObject request = build(querySettings);
+
+    assertThat(request.has("aggregations")).isFalse();
+    assertThat(request.has("facets")).isFalse();
+  }
+
+  private JSONObject build(QuerySettings querySettings) throws JSONException {
+    Client client = createNiceMock(Client.class);
+    replay(client);
+    SearchRequestBuilder request = SearchQueryBuilder.newSearchQuery(querySettings)
+        .build(new SearchRequestBuilder(client, SearchAction.INSTANCE));
+    return new JSONObject(request.toString());
+  }
+
+  private QuerySettings childQueries(String operator) {
+    QuerySettings querySettings = createNiceMock(QuerySettings.class);
+    expect(querySettings.hasChildQueries()).andReturn(true).anyTimes();
+    expect(querySettings.getChildQueryOperator()).andReturn(operator).anyTimes();
+    expect(querySettings.getChildQueries()).andReturn(ImmutableList.of(childQuery("a:1"), childQuery("b:2"))).anyTimes();
+    replay(querySettings);
+    return querySettings;
+  }
+
+  private QuerySettings.ChildQuery childQuery(String query) {
+    QuerySettings.ChildQuery child = createNiceMock(QuerySettings.ChildQuery.class);
+    expect(child.getType()).andReturn("ValueSet").anyTimes();
+    expect(child.getQuery()).andReturn(query).anyTimes();
+    replay(child);
+    return child;
+  }
+
+  /**
+   * Get the has_child queries of a bool query clause, which is an object when there is only one query.
+   */
+  private List<JSONObject> hasChildQueries(JSONObject query, String occur) throws JSONException {
+    JSONObject bool = query.getJSONObject("bool");
+    List<JSONObject> queries = Lists.newArrayList();
+    if (!bool.has(occur)) return queries;
+    JSONArray clauses = bool.optJSONArray(occur);
+    if (clauses == null) clauses = new JSONArray().put(bool.getJSONObject(occur));
+    for (int i = 0; i < clauses.length(); i++) queries.add(clauses.getJSONObject(i).getJSONObject("has_child"));
+    return queries;
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+import org.obiba.magma.ValueTable;
+import org.obiba.magma.Variable;
+import org.obiba.opal.spi.search.VariableSummaryHandler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+
+public class SummarySchedulerTest {
+
+  // tables which computation is started, in order
+  private final List<String> started = Collections.synchronizedList(Lists.newArrayList());
+
+  // computations blocked until released, by table
+  private final Map<String, CountDownLatch> blocked = new ConcurrentHashMap<>();
+
+  private final AtomicInteger running = new AtomicInteger();
+
+  private final AtomicInteger maxRunning = new AtomicInteger();
+
+  private final AtomicInteger cleared = new AtomicInteger();
+
+  private SummaryScheduler scheduler;
+
+  @After
+  public void tearDown() {
+    blocked.values().forEach(CountDownLatch::countDown);
+    if (scheduler != null) scheduler.shutdown();
+  }
+
+  @Test
+  public void test_pending_computation_not_duplicated() throws InterruptedException {
+    scheduler = new SummaryScheduler(createHandler(), null, 1);
+    ValueTable blocker = createMockTable("ds.blocker", 1);
+    ValueTable table = createMockTable("ds.t1", 10);
+    CountDownLatch release = block("ds.blocker");
+
+    scheduler.schedule(blocker);
+    awaitStarted(1);
+    scheduler.schedule(table);
+    scheduler.schedule(table);
+    release.countDown();
+
+    awaitStarted(2);
+    Thread.sleep(200);
+    assertThat(started).containsExactly("ds.blocker", "ds.t1");
+  }
+
+  @Test
+  public void test_smaller_tables_first() throws InterruptedException {
+    scheduler = new SummaryScheduler(createHandler(), null, 1);
+    CountDownLatch release = block("ds.blocker");
+
+    scheduler.schedule(createMockTable("ds.blocker", 1));
+    awaitStarted(1);
+    scheduler.schedule(createMockTable("ds.large", 1000));
+    scheduler.schedule(createMockTable("ds.medium", 100));
+    scheduler.schedule(createMockTable("ds.small", 10));
+    release.countDown();
+
+    awaitStarted(4);
+    assertThat(started).containsExactly("ds.blocker", "ds.small", "ds.medium", "ds.large");
+  }
+
+  @Test
+  public void test_cancel_pending_computation() throws InterruptedException {
+    scheduler = new SummaryScheduler(createHandler(), null, 1);
+    ValueTable table = createMockTable("ds.t1", 10);
+    CountDownLatch release = block("ds.blocker");
+
+    scheduler.schedule(createMockTable("ds.blocker", 1));
+    awaitStarted(1);
+    scheduler.schedule(table);
+    scheduler.cancel(table);
+    scheduler.schedule(createMockTable("ds.t2", 10));
+    release.countDown();
+
+    awaitStarted(2);
+    Thread.sleep(200);
+    assertThat(started).containsExactly("ds.blocker", "ds.t2");
+    assertThat(cleared.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_reschedule_while_running() throws InterruptedException {
+    scheduler = new SummaryScheduler(createHandler(), null, 2);
+    ValueTable table = createMockTable("ds.t1", 10);
+    CountDownLatch release = block("ds.t1");
+
+    scheduler.schedule(table);
+    awaitStarted(1);
+    // the table is synchronized again while its summaries are computed
+    scheduler.cancel(table);
+    scheduler.schedule(table);
+    scheduler.schedule(table);
+
+    Thread.sleep(200);
+    assertThat(started).hasSize(1);
+    blocked.remove("ds.t1");
+    release.countDown();
+
+    awaitStarted(2);
+    Thread.sleep(200);
+    assertThat(started).containsExactly("ds.t1", "ds.t1");
+    assertThat(maxRunning.get()).isEqualTo(1);
+    assertThat(cleared.get()).isEqualTo(1);
+  }
+
+  @Test
+  public void test_reschedule_after_cancelled_reschedule() throws InterruptedException {
+    scheduler = new SummaryScheduler(createHandler(), null, 2);
+    ValueTable table = createMockTable("ds.t1", 10);
+    CountDownLatch release = block("ds.t1");
+
+    scheduler.schedule(table);
+    awaitStarted(1);
+    scheduler.schedule(table);
+    // the chained computation is cancelled, the next one still waits for the running one
+    scheduler.cancel(table);
+    scheduler.schedule(table);
+
+    Thread.sleep(200);
+    assertThat(started).hasSize(1);
+    blocked.remove("ds.t1");
+    release.countDown();
+
+    awaitStarted(2);
+    Thread.sleep(200);
+    assertThat(started).hasSize(2);
+    assertThat(maxRunning.get()).isEqualTo(1);
+  }
+
+  private CountDownLatch block(String reference) {
+    CountDownLatch latch = new CountDownLatch(1);
+    blocked.put(reference, latch);
+    return latch;
+  }
+
+  private void awaitStarted(int count) throws InterruptedException {
+    for (int i = 0; i < 50 && started.size() < count; i++) Thread.sleep(100);
+    assertThat(started).hasSize(count);
+  }
+
+  private VariableSummaryHandler createHandler() {
+    VariableSummaryHandler handler = createNiceMock(VariableSummaryHandler.class);
+    handler.computeSummaries(anyObject(ValueTable.class));
+    expectLastCall().andAnswer(() -> {
+      String reference = ((ValueTable) getCurrentArguments()[0]).getTableReference();
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      started.add(reference);
+      try {
+        CountDownLatch latch = blocked.get(reference);
+        if (latch != null) latch.await(5, TimeUnit.SECONDS);
+      } finally {
+        running.decrementAndGet();
+      }
+      return null;
+    }).anyTimes();
+    handler.clearComputingSummaries(anyObject(ValueTable.class));
+    expectLastCall().andAnswer(() -> {
+      cleared.incrementAndGet();
+      return null;
+    }).anyTimes();
+    replay(handler);
+    return handler;
+  }
+
+  private ValueTable createMockTable(String reference, int entities) {
+    ValueTable table = createMock(ValueTable.class);
+    expect(table.getTableReference()).andReturn(reference).anyTimes();
+    expect(table.getVariableEntityCount()).andReturn(entities).anyTimes();
+    expect(table.getVariables()).andReturn(ImmutableList.of(createMock(Variable.class))).anyTimes();
+    replay(table);
+    return table;
+  }
+}
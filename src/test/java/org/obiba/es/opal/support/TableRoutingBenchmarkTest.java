@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Facet latency on one table of a shared values index, with the documents routed by entity or by table. Run with
+ * -Dbenchmark=true, the sizes can be set with -Dbenchmark.tables, -Dbenchmark.entities and -Dbenchmark.shards.
+ */
+public class TableRoutingBenchmarkTest {
+
+  private static final Logger log = LoggerFactory.getLogger(TableRoutingBenchmarkTest.class);
+
+  private static final int TABLES = Integer.getInteger("benchmark.tables", 20);
+
+  private static final int ENTITIES = Integer.getInteger("benchmark.entities", 5000);
+
+  private static final int SHARDS = Integer.getInteger("benchmark.shards", 5);
+
+  private static final int RUNS = 200;
+
+  private static Path home;
+
+  private static Node node;
+
+  private static Client client;
+
+  @BeforeClass
+  public static void startNode() throws IOException {
+    Assume.assumeTrue(Boolean.getBoolean("benchmark"));
+    home = Files.createTempDirectory("es-benchmark");
+    node = NodeBuilder.nodeBuilder().local(true).clusterName("benchmark") //
+        .settings(Settings.settingsBuilder().put("path.home", home.toString()).put("http.enabled", false)) //
+        .node();
+    client = node.client();
+    createIndex("values-entity", false);
+    createIndex("values-table", true);
+  }
+
+  @AfterClass
+  public static void stopNode() {
+    if (node != null) node.close();
+  }
+
+  @Test
+  public void test_facet_latency() {
+    double byEntity = facetLatency("values-entity", null);
+    double byTable = facetLatency("values-table", "ds.table0");
+    log.info("Facet on one of {} tables of {} entities in {} shards: {}ms routed by entity, {}ms routed by table",
+        TABLES, ENTITIES, SHARDS, byEntity, byTable);
+  }
+
+  private double facetLatency(String index, String routing) {
+    SearchRequestBuilder search = client.prepareSearch(index).setTypes("ValueSet").setSize(0) //
+        .setQuery(QueryBuilders.termQuery("reference", "ds.table0")) //
+        .addAggregation(AggregationBuilders.terms("facet").field("category"));
+    if (routing != null) search.setRouting(routing);
+    // warm up
+    for (int i = 0; i < RUNS / 10; i++) search.execute().actionGet();
+    long start = System.nanoTime();
+    for (int i = 0; i < RUNS; i++) {
+      SearchResponse response = search.execute().actionGet();
+      assertThat(response.getHits().getTotalHits()).isEqualTo(ENTITIES);
+      if (routing != null) assertThat(response.getTotalShards()).isEqualTo(1);
+    }
+    return (System.nanoTime() - start) / 1000000.0 / RUNS;
+  }
+
+  private static void createIndex(String index, boolean routedByTable) throws IOException {
+    client.admin().indices().prepareCreate(index) //
+        .setSettings(Settings.settingsBuilder().put("number_of_shards", SHARDS).put("number_of_replicas", 0)) //
+        .addMapping("Participant", XContentFactory.jsonBuilder().startObject().startObject("Participant").endObject()
+            .endObject()) //
+        .addMapping("ValueSet", XContentFactory.jsonBuilder().startObject().startObject("ValueSet") //
+            .startObject("_parent").field("type", "Participant").endObject() //
+            .startObject("properties") //
+            .startObject("reference").field("type", "string").field("index", "not_analyzed").endObject() //
+            .startObject("category").field("type", "string").field("index", "not_analyzed").endObject() //
+            .endObject() //
+            .endObject().endObject()) //
+        .execute().actionGet();
+    for (int t = 0; t < TABLES; t++) {
+      String reference = "ds.table" + t;
+      String routing = routedByTable ? reference : null;
+      BulkRequestBuilder bulk = client.prepareBulk();
+      for (int e = 0; e < ENTITIES; e++) {
+        String identifier = "" + e;
+        IndexRequestBuilder entity = client.prepareIndex(index, "Participant", identifier)
+            .setSource("{\"identifier\":\"" + identifier + "\"}");
+        // a null routing would clear the one set from the parent
+        if (routing != null) entity.setRouting(routing);
+        bulk.add(entity);
+        IndexRequestBuilder valueSet = client.prepareIndex(index, "ValueSet", reference + "-" + identifier)
+            .setParent(identifier)
+            .setSource("{\"reference\":\"" + reference + "\",\"category\":\"" + (e % 10) + "\"}");
+        if (routing != null) valueSet.setRouting(routing);
+        bulk.add(valueSet);
+        if (bulk.numberOfActions() >= 5000) {
+          assertThat(bulk.execute().actionGet().hasFailures()).isFalse();
+          bulk = client.prepareBulk();
+        }
+      }
+      if (bulk.numberOfActions() > 0) assertThat(bulk.execute().actionGet().hasFailures()).isFalse();
+    }
+    client.admin().indices().prepareRefresh(index).execute().actionGet();
+  }
+}
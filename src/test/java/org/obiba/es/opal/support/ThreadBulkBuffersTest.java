@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.action.bulk.BulkAction;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+public class ThreadBulkBuffersTest {
+
+  private static final int THREADS = 4;
+
+  private static final int ACTIONS = 25;
+
+  @Test
+  public void test_one_buffer_per_thread() throws InterruptedException {
+    Client client = createMockClient();
+    List<BulkBuffer> created = Lists.newCopyOnWriteArrayList();
+    ThreadBulkBuffers buffers = new ThreadBulkBuffers(() -> {
+      BulkBuffer bulkBuffer = newBulkBuffer(client);
+      created.add(bulkBuffer);
+      return bulkBuffer;
+    });
+
+    fill(buffers, client);
+
+    assertThat(created).hasSize(THREADS).doesNotHaveDuplicates();
+    assertThat(buffers.get()).isSameAs(buffers.get());
+  }
+
+  @Test
+  public void test_drain_every_thread_buffer() throws InterruptedException {
+    Client client = createMockClient();
+    ThreadBulkBuffers buffers = new ThreadBulkBuffers(() -> newBulkBuffer(client));
+    fill(buffers, client);
+    // the current thread has its buffer too
+    buffers.get().add(newIndexRequest(client, "main"));
+
+    BulkBuffer remaining = newBulkBuffer(client);
+    List<Integer> merged = Lists.newArrayList();
+    buffers.drainTo(remaining, target -> merged.add(target.numberOfActions()));
+
+    assertThat(merged).hasSize(THREADS + 1);
+    assertThat(remaining.numberOfActions()).isEqualTo(THREADS * ACTIONS + 1);
+    assertThat(buffers.get().isEmpty()).isTrue();
+  }
+
+  @Test
+  public void test_drain_sends_when_full() throws InterruptedException {
+    Client client = createMockClient();
+    ThreadBulkBuffers buffers = new ThreadBulkBuffers(() -> newBulkBuffer(client));
+    fill(buffers, client);
+
+    BulkBuffer remaining = new BulkBuffer(client, new BulkPolicy(ACTIONS * 2, 0, 0));
+    List<Integer> sent = Lists.newArrayList();
+    buffers.drainTo(remaining, target -> {
+      if (target.isFull()) sent.add(target.drain().numberOfActions());
+    });
+
+    assertThat(sent).containsExactly(ACTIONS * 2, ACTIONS * 2);
+    assertThat(remaining.isEmpty()).isTrue();
+  }
+
+  /**
+   * Each thread adds its actions to its own buffer, without sending them.
+   */
+  private void fill(ThreadBulkBuffers buffers, Client client) throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    CountDownLatch started = new CountDownLatch(THREADS);
+    try {
+      for (int t = 0; t < THREADS; t++) {
+        String thread = "t" + t;
+        executor.execute(() -> {
+          // all the threads are busy at the same time, so that each task runs in its own thread
+          started.countDown();
+          try {
+            started.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          for (int i = 0; i < ACTIONS; i++) buffers.get().add(newIndexRequest(client, thread + "-" + i));
+        });
+      }
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(executor.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+  }
+
+  private BulkBuffer newBulkBuffer(Client client) {
+    return new BulkBuffer(client, new BulkPolicy(0, 0, 0));
+  }
+
+  private IndexRequestBuilder newIndexRequest(Client client, String id) {
+    return new IndexRequestBuilder(client, IndexAction.INSTANCE, "opal-values").setType("ValueSet").setId(id)
+        .setSource("{}");
+  }
+
+  private Client createMockClient() {
+    Client client = createNiceMock(Client.class);
+    expect(client.prepareBulk()).andAnswer(() -> new BulkRequestBuilder(client, BulkAction.INSTANCE)).anyTimes();
+    replay(client);
+    return client;
+  }
+}
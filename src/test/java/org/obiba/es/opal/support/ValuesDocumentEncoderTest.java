@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2018 OBiBa. All rights reserved.
+ *
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.obiba.es.opal.support;
+
+import java.nio.charset.StandardCharsets;
+
+import org.codehaus.jettison.json.JSONObject;
+import org.junit.Test;
+import org.obiba.magma.Datasource;
+import org.obiba.magma.ValueTable;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+
+public class ValuesDocumentEncoderTest {
+
+  @Test
+  public void test_encode_document() throws Exception {
+    ValuesDocumentEncoder encoder = new ValuesDocumentEncoder(createMockTable("my \"ds\"", "table"));
+
+    ValuesDocumentEncoder.Document document = encoder.start("1234");
+    document.field("a", "text").field("b", 12L).field("c", null);
+    document.startArray("d").value(1.5).value(null).endArray();
+    JSONObject json = new JSONObject(new String(document.end(), StandardCharsets.UTF_8));
+
+    assertThat(json.getString("identifier")).isEqualTo("1234");
+    assertThat(json.getString("project")).isEqualTo("my \"ds\"");
+    assertThat(json.getString("datasource")).isEqualTo("my \"ds\"");
+    assertThat(json.getString("table")).isEqualTo("table");
+    assertThat(json.getString("reference")).isEqualTo("my \"ds\".table");
+    assertThat(json.getString("entityType")).isEqualTo("Participant");
+    assertThat(json.getString("a")).isEqualTo("text");
+    assertThat(json.getLong("b")).isEqualTo(12L);
+    assertThat(json.isNull("c")).isTrue();
+    assertThat(json.getJSONArray("d").length()).isEqualTo(2);
+    assertThat(json.getJSONArray("d").getDouble(0)).isEqualTo(1.5);
+  }
+
+  @Test
+  public void test_encode_successive_documents() throws Exception {
+    ValuesDocumentEncoder encoder = new ValuesDocumentEncoder(createMockTable("ds", "table"));
+
+    encoder.start("1").field("a", "x").end();
+    JSONObject json = new JSONObject(new String(encoder.start("2").field("a", "y").end(), StandardCharsets.UTF_8));
+
+    assertThat(json.getString("identifier")).isEqualTo("2");
+    assertThat(json.getString("a")).isEqualTo("y");
+  }
+
+  private ValueTable createMockTable(String dsName, String tableName) {
+    Datasource datasource = createMock(Datasource.class);
+    expect(datasource.getName()).andReturn(dsName).anyTimes();
+    replay(datasource);
+    ValueTable table = createMock(ValueTable.class);
+    expect(table.getDatasource()).andReturn(datasource).anyTimes();
+    expect(table.getName()).andReturn(tableName).anyTimes();
+    expect(table.getTableReference()).andReturn(dsName + "." + tableName).anyTimes();
+    expect(table.getEntityType()).andReturn("Participant").anyTimes();
+    replay(table);
+    return table;
+  }
+
+}